@@ -37,7 +37,6 @@ import android.os.HandlerThread;
 import android.os.Trace;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.appcompat.widget.SwitchCompat;
 import androidx.appcompat.widget.Toolbar;
 
 
@@ -46,22 +45,26 @@ import android.view.Surface;
 import android.view.View;
 import android.view.ViewTreeObserver;
 import android.view.WindowManager;
-import android.widget.CompoundButton;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.google.mlkit.vision.common.InputImage;
 
-import java.nio.ByteBuffer;
-import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+import org.tensorflow.lite.examples.detection.env.YuvToArgbConverter;
+import org.tensorflow.lite.examples.detection.tflite.Backend;
 
 public abstract class CameraActivity extends AppCompatActivity
     implements OnImageAvailableListener,
         Camera.PreviewCallback,
-        CompoundButton.OnCheckedChangeListener,
+        AdapterView.OnItemSelectedListener,
         View.OnClickListener {
   private static final Logger LOGGER = new Logger();
 
@@ -74,12 +77,20 @@ public abstract class CameraActivity extends AppCompatActivity
   private Handler handler;
   private HandlerThread handlerThread;
   private boolean useCamera2API;
-  private boolean isProcessingFrame = false;
-  private byte[][] yuvBytes = new byte[3][];
+  // Cleared by readyForNextImage, which may run on another thread than the camera callbacks.
+  private volatile boolean isProcessingFrame = false;
+  // The current NV21 buffer of the legacy Camera API.
+  private byte[] previewBytes;
+  // The current frame in its camera format, valid until readyForNextImage.
+  private final YuvFrame yuvFrame = new YuvFrame();
+  // The current Camera2 image, null for frames of the legacy Camera API.
+  private Image cameraImage;
   private int[] rgbBytes = null;
-  private int yRowStride;
   private Runnable postInferenceCallback;
   private Runnable imageConverter;
+  // Frames are converted to RGB in row stripes, on up to this many threads
+  private static final int MAX_CONVERSION_THREADS = 4;
+  private YuvToArgbConverter yuvConverter;
 
   private LinearLayout bottomSheetLayout;
   private LinearLayout gestureLayout;
@@ -88,7 +99,7 @@ public abstract class CameraActivity extends AppCompatActivity
   protected TextView frameValueTextView, cropValueTextView, inferenceTimeTextView;
   protected ImageView bottomSheetArrowImageView;
   private ImageView plusImageView, minusImageView;
-  private SwitchCompat apiSwitchCompat;
+  private Spinner backendSpinner;
   private TextView threadsTextView;
 
   private FloatingActionButton btnSwitchCam, fab_seach;
@@ -108,6 +119,10 @@ public abstract class CameraActivity extends AppCompatActivity
     LOGGER.d("onCreate " + this);
     super.onCreate(null);
 
+    yuvConverter =
+        new YuvToArgbConverter(
+            Math.min(MAX_CONVERSION_THREADS, Runtime.getRuntime().availableProcessors()));
+
     Intent intent = getIntent();
     //useFacing = intent.getIntExtra(KEY_USE_FACING, CameraCharacteristics.LENS_FACING_FRONT);
     useFacing = intent.getIntExtra(KEY_USE_FACING, CameraCharacteristics.LENS_FACING_BACK);
@@ -128,7 +143,7 @@ public abstract class CameraActivity extends AppCompatActivity
     threadsTextView = findViewById(R.id.threads);
     plusImageView = findViewById(R.id.plus);
     minusImageView = findViewById(R.id.minus);
-    apiSwitchCompat = findViewById(R.id.api_info_switch);
+    backendSpinner = findViewById(R.id.backend_spinner);
     bottomSheetLayout = findViewById(R.id.bottom_sheet_layout);
     gestureLayout = findViewById(R.id.gesture_layout);
     sheetBehavior = BottomSheetBehavior.from(bottomSheetLayout);
@@ -199,7 +214,13 @@ public abstract class CameraActivity extends AppCompatActivity
     cropValueTextView = findViewById(R.id.crop_info);
     inferenceTimeTextView = findViewById(R.id.inference_info);
 
-    apiSwitchCompat.setOnCheckedChangeListener(this);
+    final ArrayAdapter<Backend> backends =
+        new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, Backend.values());
+    backends.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+    backendSpinner.setAdapter(backends);
+    backendSpinner.setSelection(getBackend().ordinal(), false);
+    backendSpinner.setOnItemSelectedListener(this);
+    threadsTextView.setText(String.valueOf(getNumThreads()));
 
     plusImageView.setOnClickListener(this);
     minusImageView.setOnClickListener(this);
@@ -243,17 +264,41 @@ public abstract class CameraActivity extends AppCompatActivity
     overridePendingTransition(0, 0);
   }
 
+  /** The current frame at full resolution, only converted once something asks for it. */
   protected int[] getRgbBytes() {
-    imageConverter.run();
+    if (imageConverter != null) {
+      imageConverter.run();
+      imageConverter = null;
+    }
     return rgbBytes;
   }
 
-  protected int getLuminanceStride() {
-    return yRowStride;
+  /**
+   * Converts the current frame shrunk by factor, rotated clockwise by rotation degrees and, if
+   * mirror is set, flipped left to right, all in one pass without converting it at full
+   * resolution first.
+   */
+  protected void getDecimatedRgbBytes(
+      final int factor, final int rotation, final boolean mirror, final int[] out) {
+    yuvConverter.convertDecimated(yuvFrame, factor, rotation, mirror, out);
+  }
+
+  /**
+   * The current frame as ML Kit input, handed over in its camera format without any conversion.
+   *
+   * @param rotation Clockwise rotation making the frame upright, a multiple of 90.
+   */
+  protected InputImage getInputImage(final int rotation) {
+    final int degrees = ((rotation % 360) + 360) % 360;
+    if (cameraImage != null) {
+      return InputImage.fromMediaImage(cameraImage, degrees);
+    }
+    return InputImage.fromByteArray(
+        previewBytes, previewWidth, previewHeight, degrees, InputImage.IMAGE_FORMAT_NV21);
   }
 
-  protected byte[] getLuminance() {
-    return yuvBytes[0];
+  protected YuvFrame getYuvFrame() {
+    return yuvFrame;
   }
 
   /** Callback for android.hardware.Camera API */
@@ -285,14 +330,15 @@ public abstract class CameraActivity extends AppCompatActivity
     }
 
     isProcessingFrame = true;
-    yuvBytes[0] = bytes;
-    yRowStride = previewWidth;
+    cameraImage = null;
+    previewBytes = bytes;
+    yuvFrame.setNv21(bytes, previewWidth, previewHeight);
 
     imageConverter =
         new Runnable() {
           @Override
           public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+            yuvConverter.convert(yuvFrame, rgbBytes);
           }
         };
 
@@ -329,27 +375,25 @@ public abstract class CameraActivity extends AppCompatActivity
         return;
       }
       isProcessingFrame = true;
+      cameraImage = image;
       Trace.beginSection("imageAvailable");
+      // The planes are read in place until postInferenceCallback closes the image.
       final Plane[] planes = image.getPlanes();
-      fillBytes(planes, yuvBytes);
-      yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
+      yuvFrame.setYuv420(
+          planes[0].getBuffer(),
+          planes[1].getBuffer(),
+          planes[2].getBuffer(),
+          previewWidth,
+          previewHeight,
+          planes[0].getRowStride(),
+          planes[1].getRowStride(),
+          planes[1].getPixelStride());
 
       imageConverter =
           new Runnable() {
             @Override
             public void run() {
-              ImageUtils.convertYUV420ToARGB8888(
-                  yuvBytes[0],
-                  yuvBytes[1],
-                  yuvBytes[2],
-                  previewWidth,
-                  previewHeight,
-                  yRowStride,
-                  uvRowStride,
-                  uvPixelStride,
-                  rgbBytes);
+              yuvConverter.convert(yuvFrame, rgbBytes);
             }
           };
 
@@ -357,6 +401,7 @@ public abstract class CameraActivity extends AppCompatActivity
           new Runnable() {
             @Override
             public void run() {
+              cameraImage = null;
               image.close();
               isProcessingFrame = false;
             }
@@ -412,6 +457,7 @@ public abstract class CameraActivity extends AppCompatActivity
   @Override
   public synchronized void onDestroy() {
     LOGGER.d("onDestroy " + this);
+    yuvConverter.close();
     super.onDestroy();
   }
 
@@ -566,19 +612,6 @@ public abstract class CameraActivity extends AppCompatActivity
         getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
     }
 
-  protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-    // Because of the variable row stride it's not possible to know in
-    // advance the actual necessary dimensions of the yuv planes.
-    for (int i = 0; i < planes.length; ++i) {
-      final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-        yuvBytes[i] = new byte[buffer.capacity()];
-      }
-      buffer.get(yuvBytes[i]);
-    }
-  }
-
   public boolean isDebug() {
     return debug;
   }
@@ -603,10 +636,19 @@ public abstract class CameraActivity extends AppCompatActivity
   }
 
   @Override
-  public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-    setUseNNAPI(isChecked);
-    if (isChecked) apiSwitchCompat.setText("NNAPI");
-    else apiSwitchCompat.setText("TFLITE");
+  public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+    final Backend backend = Backend.values()[position];
+    if (backend != getBackend()) {
+      setBackend(backend);
+    }
+  }
+
+  @Override
+  public void onNothingSelected(AdapterView<?> parent) {}
+
+  /** Shows the backend actually in use, for example after the selected one failed. */
+  protected void showBackend(final Backend backend) {
+    backendSpinner.setSelection(backend.ordinal(), false);
   }
 
   @Override
@@ -621,7 +663,7 @@ public abstract class CameraActivity extends AppCompatActivity
     } else if (v.getId() == R.id.minus) {
       String threads = threadsTextView.getText().toString().trim();
       int numThreads = Integer.parseInt(threads);
-      if (numThreads == 1) {
+      if (numThreads <= 1) {
         return;
       }
       numThreads--;
@@ -685,5 +727,9 @@ public abstract class CameraActivity extends AppCompatActivity
 
   protected abstract void setNumThreads(int numThreads);
 
-  protected abstract void setUseNNAPI(boolean isChecked);
+  protected abstract int getNumThreads();
+
+  protected abstract Backend getBackend();
+
+  protected abstract void setBackend(Backend backend);
 }
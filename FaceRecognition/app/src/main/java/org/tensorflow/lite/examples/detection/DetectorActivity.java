@@ -16,10 +16,10 @@
 
 package org.tensorflow.lite.examples.detection;
 
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 
@@ -30,6 +30,8 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.media.ImageReader.OnImageAvailableListener;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
@@ -47,19 +49,40 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.tensorflow.lite.examples.detection.WebServices.ConstantString;
+import org.tensorflow.lite.examples.detection.WebServices.GalleryDelta;
+import org.tensorflow.lite.examples.detection.WebServices.GallerySync;
 import org.tensorflow.lite.examples.detection.WebServices.GetJsonWithParameter;
 import org.tensorflow.lite.examples.detection.customview.OverlayView;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
+import org.tensorflow.lite.examples.detection.tflite.Backend;
+import org.tensorflow.lite.examples.detection.tflite.ConcurrentGallery;
+import org.tensorflow.lite.examples.detection.tflite.DistanceMode;
+import org.tensorflow.lite.examples.detection.tflite.EmbeddingGallery;
+import org.tensorflow.lite.examples.detection.tflite.EmbeddingIndex;
+import org.tensorflow.lite.examples.detection.tflite.HnswIndex;
+import org.tensorflow.lite.examples.detection.tflite.IvfIndex;
+import org.tensorflow.lite.examples.detection.tflite.MappedEmbeddingGallery;
+import org.tensorflow.lite.examples.detection.tflite.PrototypeGallery;
+import org.tensorflow.lite.examples.detection.tflite.QuantizedEmbeddingGallery;
 import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier;
 import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * An activity that uses a TensorFlowMultiBoxDetector and ObjectTracker to detect and then track
@@ -72,10 +95,53 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   // MobileFaceNet
   private static final int TF_OD_API_INPUT_SIZE = 112;
+  // An int8 or uint8 MobileFaceNet can be dropped in instead, the classifier reads the input and
+  // output types and quantization of the model itself and dequantizes the embeddings.
   private static final boolean TF_OD_API_IS_QUANTIZED = false;
   private static final String TF_OD_API_MODEL_FILE = "mobile_face_net.tflite";
   private static final String TF_OD_API_LABELS_FILE = "file:///android_asset/labelmap.txt";
-  private static final boolean MAINTAIN_ASPECT = false;
+  // Faces of a frame are spread over this many interpreters, each running INTERPRETER_THREADS
+  // threads. The small model scales better across interpreters than across threads.
+  private static final int INTERPRETER_POOL_SIZE = 2;
+  private static final int INTERPRETER_THREADS = 2;
+  // Kernels used until another backend is picked in the bottom sheet
+  private static final Backend TF_OD_API_BACKEND = Backend.XNNPACK;
+  // Inferences run on a synthetic face before recognition is enabled, so the first real face does
+  // not pay for kernel initialization
+  private static final int WARM_UP_RUNS = 3;
+  // COSINE distances lie in [0, 2], so the 1.0f match threshold in onFacesDetected needs retuning
+  private static final DistanceMode TF_OD_API_DISTANCE_MODE = DistanceMode.EUCLIDEAN;
+
+  // Storage used for registered faces
+  private enum GalleryType {
+    // fp32 embeddings scanned exactly, kept in a memory-mapped file across restarts
+    MAPPED,
+    // fp32 embeddings scanned exactly
+    FLAT,
+    // int8 embeddings scanned approximately, best candidates re-ranked from an fp32 file
+    QUANTIZED,
+    // graph index for large galleries, exact scan while the gallery is small
+    HNSW,
+    // k-means inverted lists, re-clustered in the background, less memory than HNSW
+    IVF
+  }
+  private static final GalleryType GALLERY_TYPE = GalleryType.MAPPED;
+  private static final String GALLERY_FILE = "gallery.bin";
+  // Samples averaged into every prototype of the mapped gallery
+  private static final String GALLERY_WEIGHTS_FILE = "gallery_weights.bin";
+  private static final String GALLERY_VECTORS_FILE = "gallery_vectors.bin";
+  // FLAT galleries larger than this are scanned on all cores
+  private static final int PARALLEL_SEARCH_THRESHOLD = 4096;
+  // Embeddings kept per registered face, samples closer than the merge distance are averaged
+  private static final int MAX_PROTOTYPES = 5;
+  private static final float PROTOTYPE_MERGE_DISTANCE = 0.5f;
+  // Gallery sync records applied per inference thread task, so frames are processed in between
+  private static final int GALLERY_SYNC_BATCH = 64;
+  private static final String GALLERY_SYNC_PREFS = "gallery_sync";
+  private static final String GALLERY_SYNC_VERSION = "version";
+
+  // Frames with faces are also converted upright and shrunk by this factor, for the face API
+  private static final int CROP_DECIMATION = 2;
 
   private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
   private static final boolean SAVE_PREVIEW_BITMAP = false;
@@ -83,20 +149,32 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   OverlayView trackingOverlay;
   private Integer sensorOrientation;
 
-  private SimilarityClassifier detector;
+  // Loaded in the background since process start, taken over by the camera thread once hot
+  private Future<SimilarityClassifier> pendingDetector;
+  private volatile SimilarityClassifier detector;
+  private boolean firstRecognitionReported = false;
+  // Backend picked in the bottom sheet, read on the UI thread
+  private volatile Backend backend = TF_OD_API_BACKEND;
+  // Interpreter threads picked in the bottom sheet, read on the UI thread
+  private volatile int numThreads = INTERPRETER_THREADS;
+  // Last inference time on every backend tried so far
+  private final EnumMap<Backend, Long> backendLatencyMs = new EnumMap<>(Backend.class);
 
-  private Bitmap rgbFrameBitmap = null;
   private Bitmap croppedBitmap = null;
-  private Bitmap portraitBmp = null;
-  // here the face is cropped and drawn
-  private Bitmap faceBmp = null;
+  private int[] croppedPixels;
+  // Faces are sampled straight out of the camera frame, one model input to frame transform each
+  private final List<Matrix> faceTransforms = new ArrayList<>();
+  private SimilarityClassifier.Match[] matches = new SimilarityClassifier.Match[0];
 
   private boolean computingDetection = false;
   private long timestamp = 0;
   private long lastProcessingTimeMs;
 
-  private Matrix frameToCropTransform;
-  private Matrix cropToFrameTransform;
+  // Frame to the upright, portrait oriented frame, and back
+  private Matrix frameToPortraitTransform;
+  private Matrix portraitToFrameTransform;
+  // Mirrors frame coordinates the way the front camera preview is shown, null for back cameras
+  private Matrix frontCameraFlip;
 
   private MultiBoxTracker tracker;
   private BorderedText borderedText;
@@ -108,8 +186,16 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   /* Set face_detected flag to true when face detected and false when response returned by api */
   private boolean face_detected = false;
 
+  // Last synced version of every identity, only used on the inference thread
+  private final HashMap<String, Long> identityVersions = new HashMap<>();
+  // Sync being applied and its next record, so that one cut off by onPause goes on in onResume
+  private volatile GalleryDelta syncingDelta;
+  private volatile int syncingFrom;
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
+    pendingDetector = ((FaceRecognitionApplication) getApplication()).getClassifier();
+    adoptClassifierSettings();
     super.onCreate(savedInstanceState);
 
     // Real-time contour detection of multiple faces
@@ -128,6 +214,118 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
   }
 
+  @Override
+  public synchronized void onResume() {
+    super.onResume();
+    // The inference thread is recreated on every resume, it takes over the gallery right away.
+    runInBackground(this::applyRegistrations);
+    final GalleryDelta delta = syncingDelta;
+    if (delta != null) {
+      applyGalleryDelta(delta, syncingFrom);
+    }
+  }
+
+  // Runs on the inference thread, the one searching the gallery.
+  private void applyRegistrations() {
+    final SimilarityClassifier current = detector;
+    if (current != null) {
+      current.applyRegistrations();
+    }
+  }
+
+  @Override
+  public synchronized void onDestroy() {
+    // The classifier outlives the activity, the next one takes it over.
+    detector = null;
+    pendingDetector = null;
+    super.onDestroy();
+  }
+
+  // Starts the bottom sheet from the settings the classifier was left with by a previous activity,
+  // so that switching cameras does not rebuild its interpreters.
+  private void adoptClassifierSettings() {
+    if (!pendingDetector.isDone()) {
+      return;
+    }
+    try {
+      final SimilarityClassifier loaded = pendingDetector.get();
+      backend = loaded.getBackend();
+      numThreads = loaded.getNumThreads();
+    } catch (final ExecutionException | InterruptedException e) {
+      // Reported once the camera thread takes the classifier over.
+    }
+  }
+
+  /** Loads the face classifier and warms it up, called off the UI thread at process start. */
+  static SimilarityClassifier createClassifier(final Context context) throws IOException {
+    final SimilarityClassifier classifier =
+            TFLiteObjectDetectionAPIModel.create(
+                    context.getAssets(),
+                    TF_OD_API_MODEL_FILE,
+                    TF_OD_API_LABELS_FILE,
+                    TF_OD_API_INPUT_SIZE,
+                    TF_OD_API_IS_QUANTIZED,
+                    // loadAPIResponse registers on the UI thread while frames are searched on
+                    // the inference thread
+                    new ConcurrentGallery(
+                            new PrototypeGallery(
+                                    createGallery(context),
+                                    MAX_PROTOTYPES,
+                                    PROTOTYPE_MERGE_DISTANCE,
+                                    GALLERY_TYPE == GalleryType.MAPPED
+                                            ? new File(context.getFilesDir(), GALLERY_WEIGHTS_FILE)
+                                            : null)),
+                    TF_OD_API_BACKEND,
+                    INTERPRETER_POOL_SIZE,
+                    INTERPRETER_THREADS);
+    classifier.warmUp(WARM_UP_RUNS);
+    return classifier;
+  }
+
+  // Takes over the classifier once it is loaded and warm, on the camera thread. False while it is
+  // still loading or if it failed to load.
+  private boolean isDetectorReady() {
+    if (detector != null) {
+      return true;
+    }
+    if (pendingDetector == null || !pendingDetector.isDone()) {
+      return false;
+    }
+    final SimilarityClassifier loaded;
+    try {
+      loaded = pendingDetector.get();
+    } catch (final ExecutionException | InterruptedException e) {
+      LOGGER.e(e, "Exception initializing classifier!");
+      pendingDetector = null;
+      runOnUiThread(() -> {
+        Toast.makeText(
+                getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT)
+                .show();
+        finish();
+      });
+      return false;
+    }
+    pendingDetector = null;
+    detector = loaded;
+    LOGGER.i("Recognition enabled %dms after process start",
+            SystemClock.uptimeMillis() - FaceRecognitionApplication.getStartTimeMs());
+    if (backend != loaded.getBackend()) {
+      // Picked in the bottom sheet while the classifier was loading.
+      setBackend(backend);
+    }
+    if (numThreads != loaded.getNumThreads()) {
+      loaded.setNumThreads(numThreads);
+    }
+    runInBackground(this::applyRegistrations);
+
+    runOnUiThread(() -> new GallerySync(
+            this,
+            ConstantString.GETGALLERY_URL,
+            getGalleryVersion(),
+            TFLiteObjectDetectionAPIModel.OUTPUT_SIZE).execute());
+    return true;
+  }
+
   @Override
   public void onPreviewSizeChosen(final Size size, final int rotation) {
     final float textSizePx =
@@ -137,24 +335,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     borderedText.setTypeface(Typeface.MONOSPACE);
 
     tracker = new MultiBoxTracker(this);
-    
-    try {
-      detector =
-              TFLiteObjectDetectionAPIModel.create(
-                      getAssets(),
-                      TF_OD_API_MODEL_FILE,
-                      TF_OD_API_LABELS_FILE,
-                      TF_OD_API_INPUT_SIZE,
-                      TF_OD_API_IS_QUANTIZED);
-    } catch (final IOException e) {
-      e.printStackTrace();
-      LOGGER.e(e, "Exception initializing classifier!");
-      Toast toast =
-              Toast.makeText(
-                      getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
-      toast.show();
-      finish();
-    }
 
     previewWidth = size.getWidth();
     previewHeight = size.getHeight();
@@ -163,8 +343,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-
 
     int targetW, targetH;
     if (sensorOrientation == 90 || sensorOrientation == 270) {
@@ -175,22 +353,31 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
       targetW = previewWidth;
       targetH = previewHeight;
     }
-    int cropW = (int) (targetW / 2.0);
-    int cropH = (int) (targetH / 2.0);
+    int cropW = targetW / CROP_DECIMATION;
+    int cropH = targetH / CROP_DECIMATION;
 
     croppedBitmap = Bitmap.createBitmap(cropW, cropH, Config.ARGB_8888);
+    croppedPixels = new int[cropW * cropH];
 
-    portraitBmp = Bitmap.createBitmap(targetW, targetH, Config.ARGB_8888);
-    faceBmp = Bitmap.createBitmap(TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE, Config.ARGB_8888);
-
-    frameToCropTransform =
-            ImageUtils.getTransformationMatrix(
-                    previewWidth, previewHeight,
-                    cropW, cropH,
-                    sensorOrientation, MAINTAIN_ASPECT);
-
-    cropToFrameTransform = new Matrix();
-    frameToCropTransform.invert(cropToFrameTransform);
+    frameToPortraitTransform = createTransform(
+            previewWidth,
+            previewHeight,
+            targetW,
+            targetH,
+            sensorOrientation);
+    portraitToFrameTransform = new Matrix();
+    frameToPortraitTransform.invert(portraitToFrameTransform);
+
+    frontCameraFlip = null;
+    if (getCameraFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
+      frontCameraFlip = new Matrix();
+      if (sensorOrientation == 90 || sensorOrientation == 270) {
+        frontCameraFlip.postScale(1, -1, previewWidth / 2.0f, previewHeight / 2.0f);
+      }
+      else {
+        frontCameraFlip.postScale(-1, 1, previewWidth / 2.0f, previewHeight / 2.0f);
+      }
+    }
 
     trackingOverlay = findViewById(R.id.tracking_overlay);
     trackingOverlay.addCallback(
@@ -204,6 +391,104 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
   }
 
+  // Gallery version the server changes are requested from.
+  private long getGalleryVersion() {
+    // Only the mapped gallery outlives the activity, the others start empty.
+    if (GALLERY_TYPE != GalleryType.MAPPED) {
+      return 0;
+    }
+    return getSharedPreferences(GALLERY_SYNC_PREFS, MODE_PRIVATE).getLong(GALLERY_SYNC_VERSION, 0);
+  }
+
+  /** Applies a downloaded gallery snapshot or delta in batches on the inference thread. */
+  public void loadGalleryDelta(final GalleryDelta delta) {
+    if (!delta.isSnapshot() && delta.getBaseVersion() != getGalleryVersion()) {
+      LOGGER.w("Ignoring gallery delta from version %d", delta.getBaseVersion());
+      return;
+    }
+    syncingDelta = delta;
+    syncingFrom = 0;
+    applyGalleryDelta(delta, 0);
+  }
+
+  private void applyGalleryDelta(final GalleryDelta delta, final int from) {
+    runInBackground(() -> applyGalleryBatch(delta, from, new Handler(Looper.myLooper())));
+  }
+
+  // Runs on the inference thread. The next batch is posted straight to its looper: runInBackground
+  // would block on onPause, which waits for this thread to finish.
+  private void applyGalleryBatch(
+          final GalleryDelta delta, final int from, final Handler inference) {
+    if (detector == null) {
+      return;
+    }
+    final int to = Math.min(from + GALLERY_SYNC_BATCH, delta.size());
+    delta.apply(detector, identityVersions, from, to);
+    if (to < delta.size()) {
+      // Queue the rest behind the frames that arrived meanwhile. Dropped once the looper quits,
+      // onResume goes on from syncingFrom.
+      syncingFrom = to;
+      inference.post(() -> applyGalleryBatch(delta, to, inference));
+      return;
+    }
+    syncingDelta = null;
+    if (GALLERY_TYPE == GalleryType.MAPPED) {
+      // Only once the last record is in, so a sync cut short is requested again.
+      getSharedPreferences(GALLERY_SYNC_PREFS, MODE_PRIVATE)
+              .edit()
+              .putLong(GALLERY_SYNC_VERSION, delta.getVersion())
+              .apply();
+    }
+    LOGGER.i("Gallery synced to version %d", delta.getVersion());
+  }
+
+
+  private static EmbeddingIndex createGallery(final Context context) throws IOException {
+    switch (GALLERY_TYPE) {
+      case MAPPED:
+        final File galleryFile = new File(context.getFilesDir(), GALLERY_FILE);
+        try {
+          return MappedEmbeddingGallery.open(
+                  galleryFile,
+                  TFLiteObjectDetectionAPIModel.OUTPUT_SIZE,
+                  TF_OD_API_DISTANCE_MODE,
+                  MappedEmbeddingGallery.Encoding.FLOAT32);
+        } catch (final IOException e) {
+          // Unreadable or written with other settings, start over with an empty gallery.
+          LOGGER.e(e, "Discarding gallery file");
+          galleryFile.delete();
+          new File(context.getFilesDir(), GALLERY_WEIGHTS_FILE).delete();
+          context.getSharedPreferences(GALLERY_SYNC_PREFS, MODE_PRIVATE)
+                  .edit()
+                  .remove(GALLERY_SYNC_VERSION)
+                  .apply();
+          return MappedEmbeddingGallery.open(
+                  galleryFile,
+                  TFLiteObjectDetectionAPIModel.OUTPUT_SIZE,
+                  TF_OD_API_DISTANCE_MODE,
+                  MappedEmbeddingGallery.Encoding.FLOAT32);
+        }
+      case HNSW:
+        return new HnswIndex(TFLiteObjectDetectionAPIModel.OUTPUT_SIZE, TF_OD_API_DISTANCE_MODE);
+      case IVF:
+        return new IvfIndex(TFLiteObjectDetectionAPIModel.OUTPUT_SIZE, TF_OD_API_DISTANCE_MODE);
+      case QUANTIZED:
+        return new QuantizedEmbeddingGallery(
+                TFLiteObjectDetectionAPIModel.OUTPUT_SIZE,
+                TF_OD_API_DISTANCE_MODE,
+                QuantizedEmbeddingGallery.DEFAULT_RERANK_CANDIDATES,
+                new File(context.getFilesDir(), GALLERY_VECTORS_FILE));
+      case FLAT:
+      default:
+        final EmbeddingGallery gallery = new EmbeddingGallery(
+                TFLiteObjectDetectionAPIModel.OUTPUT_SIZE, TF_OD_API_DISTANCE_MODE);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        if (cores > 1) {
+          gallery.enableParallelSearch(cores, PARALLEL_SEARCH_THRESHOLD);
+        }
+        return gallery;
+    }
+  }
 
   @Override
   protected void processImage() {
@@ -212,7 +497,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     trackingOverlay.postInvalidate();
 
     // No mutex needed as this method is not reentrant.
-    if (computingDetection) {
+    if (computingDetection || !isDetectorReady()) {
       readyForNextImage();
       return;
     }
@@ -220,35 +505,45 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-
-    readyForNextImage();
-
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
-    }
-
-    InputImage image = InputImage.fromBitmap(croppedBitmap, 0);
+    // ML Kit reads the camera frame as is, it is only converted to RGB once faces are found. The
+    // frame is released in updateResults.
+    InputImage image = getInputImage(sensorOrientation);
     faceDetector
             .process(image)
             .addOnSuccessListener(faces -> {
               if (faces.size() == 0) {
+                runInBackground(this::applyRegistrations);
                 updateResults(currTimestamp, new LinkedList<>());
                 return;
               }
               runInBackground(
                       () -> {
+                        convertCroppedBitmap();
                         onFacesDetected(currTimestamp, faces, true);
                         face_detected = false;
                       });
+            })
+            .addOnFailureListener(e -> {
+              LOGGER.e(e, "Face detection failed");
+              updateResults(currTimestamp, new LinkedList<>());
             });
 
 
   }
 
+  // Converts the frame upright and shrunk into croppedBitmap, which is sent to the face API.
+  private void convertCroppedBitmap() {
+    final int cropW = croppedBitmap.getWidth();
+    final int cropH = croppedBitmap.getHeight();
+    // Not mirrored for front cameras, the face API gets faces the way the camera sees them.
+    getDecimatedRgbBytes(CROP_DECIMATION, sensorOrientation, false, croppedPixels);
+    croppedBitmap.setPixels(croppedPixels, 0, cropW, 0, 0, cropW, cropH);
+    // For examining the actual TF input.
+    if (SAVE_PREVIEW_BITMAP) {
+      ImageUtils.saveBitmap(croppedBitmap);
+    }
+  }
+
   @Override
   protected int getLayoutId() {
     return R.layout.tfe_od_camera_connection_fragment_tracking;
@@ -274,7 +569,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         } else {
           // If face match or get any result from api show here
           rec.setColor(Color.GREEN);
-          rec.setExtra(true);
           rec.setTitle(resObj.getString("name"));
           detector.register(resObj.getString("name"), rec);
           Toast.makeText(getApplicationContext(), obj.getString("data"), Toast.LENGTH_LONG).show();
@@ -290,13 +584,40 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   }
 
   @Override
-  protected void setUseNNAPI(final boolean isChecked) {
-    runInBackground(() -> detector.setUseNNAPI(isChecked));
+  protected Backend getBackend() {
+    return backend;
   }
 
   @Override
-  protected void setNumThreads(final int numThreads) {
-    runInBackground(() -> detector.setNumThreads(numThreads));
+  protected void setBackend(final Backend selected) {
+    backend = selected;
+    if (detector == null) {
+      return;
+    }
+    // Frames keep being recognized on the current backend until the new one is warmed up.
+    detector.setBackend(selected, (current, success) -> {
+      if (success) {
+        return;
+      }
+      backend = current;
+      runOnUiThread(() -> {
+        showBackend(current);
+        Toast.makeText(this, selected + " is not available", Toast.LENGTH_SHORT).show();
+      });
+    });
+  }
+
+  @Override
+  protected int getNumThreads() {
+    return numThreads;
+  }
+
+  @Override
+  protected void setNumThreads(final int selected) {
+    numThreads = selected;
+    if (detector != null) {
+      detector.setNumThreads(selected);
+    }
   }
 
   // Face Processing
@@ -333,6 +654,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     tracker.trackResults(mappedRecognitions, currTimestamp);
     trackingOverlay.postInvalidate();
     computingDetection = false;
+    readyForNextImage();
 
     Log.w("mappedRecognitions", String.valueOf(mappedRecognitions.size()));
 
@@ -361,13 +683,14 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     }
 
+    final String inferenceTime = getInferenceTimes();
     runOnUiThread(
             new Runnable() {
               @Override
               public void run() {
                 showFrameInfo(previewWidth + "x" + previewHeight);
                 showCropInfo(croppedBitmap.getWidth() + "x" + croppedBitmap.getHeight());
-                showInference(lastProcessingTimeMs + "ms");
+                showInference(inferenceTime);
                 showSmiling(smileProb);
                 showREyeOpened(rightEyeOpenProb);
                 showLEyeOpened(leftEyeOpenProb);
@@ -381,22 +704,12 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     final List<SimilarityClassifier.Recognition> mappedRecognitions = new LinkedList<>();
     face_detected = face_detected_flag;
 
-    // Note this can be done only once
-    int sourceW = rgbFrameBitmap.getWidth();
-    int sourceH = rgbFrameBitmap.getHeight();
-    int targetW = portraitBmp.getWidth();
-    int targetH = portraitBmp.getHeight();
-    Matrix transform = createTransform(
-            sourceW,
-            sourceH,
-            targetW,
-            targetH,
-            sensorOrientation);
-    final Canvas cv = new Canvas(portraitBmp);
+    final YuvFrame frame = getYuvFrame();
 
-    // draws the original image in portrait mode.
-    cv.drawBitmap(rgbFrameBitmap, transform, null);
-    final Canvas cvFace = new Canvas(faceBmp);
+    // Every face gets its own input transform so that all of them are embedded in one inference.
+    final List<RectF> boundingBoxes = new ArrayList<>(faces.size());
+    final List<Bitmap> crops = new ArrayList<>(faces.size());
+    final List<Matrix> faceInputs = new ArrayList<>(faces.size());
 
     for (Face face : faces) {
 
@@ -443,91 +756,149 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
       final boolean goodConfidence = true;
       if (boundingBox != null && goodConfidence) {
 
-        // maps crop coordinates to original
-        cropToFrameTransform.mapRect(boundingBox);
-
-        // maps original coordinates to portrait coordinates
+        // ML Kit reports faces in portrait coordinates, the tracker wants them in the frame
         RectF faceBB = new RectF(boundingBox);
-        transform.mapRect(faceBB);
-
-        // translates portrait to origin and scales to fit input inference size
-        float sx = ((float) TF_OD_API_INPUT_SIZE) / faceBB.width();
-        float sy = ((float) TF_OD_API_INPUT_SIZE) / faceBB.height();
-        Matrix matrix = new Matrix();
-        matrix.postTranslate(-faceBB.left, -faceBB.top);
-        matrix.postScale(sx, sy);
+        portraitToFrameTransform.mapRect(boundingBox);
 
-        cvFace.drawBitmap(portraitBmp, matrix, null);
+        // scales the input inference size to the face and maps it back to the frame
+        float sx = faceBB.width() / TF_OD_API_INPUT_SIZE;
+        float sy = faceBB.height() / TF_OD_API_INPUT_SIZE;
+        final Matrix faceToFrame = getFaceTransform(faceInputs.size());
+        faceToFrame.reset();
+        faceToFrame.postScale(sx, sy);
+        faceToFrame.postTranslate(faceBB.left, faceBB.top);
+        faceToFrame.postConcat(portraitToFrameTransform);
 
-        String label = "";
-        float confidence = -1f;
-        Integer color = Color.BLUE;
-        Object extra = null;
         Bitmap crop = null;
 
         if (face_detected_flag) {
-          try {
-            crop = Bitmap.createBitmap(portraitBmp,
-                    (int) faceBB.left,
-                    (int) faceBB.top,
-                    (int) faceBB.width(),
-                    (int) faceBB.height());
-          } catch (Exception ex){}
+          crop = sampleCrop(frame, faceBB);
         }
 
+        boundingBoxes.add(boundingBox);
+        crops.add(crop);
+        faceInputs.add(faceToFrame);
+      }
+    }
 
-        try {
-          final long startTime = SystemClock.uptimeMillis();
-          final List<SimilarityClassifier.Recognition> resultsAux = detector.recognizeImage(faceBmp, true);
-          lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+    // Embeddings are only copied out for faces that may be sent for registration.
+    final int faceCount = faceInputs.size();
+    final float[][][] extras = face_detected_flag ? new float[faceCount][1][] : null;
+    final float[][] embeddings = face_detected_flag ? new float[faceCount][] : null;
+    for (int i = 0; face_detected_flag && i < faceCount; i++) {
+      extras[i][0] = new float[TFLiteObjectDetectionAPIModel.OUTPUT_SIZE];
+      embeddings[i] = extras[i][0];
+    }
+    boolean recognized = false;
+    try {
+      final Backend running = detector.getBackend();
+      final long startTime = SystemClock.uptimeMillis();
+      detector.recognize(frame, faceInputs, getMatches(faceCount), embeddings);
+      lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+      backendLatencyMs.put(running, lastProcessingTimeMs);
+      recognized = true;
+      if (!firstRecognitionReported) {
+        firstRecognitionReported = true;
+        LOGGER.i("First recognition %dms after process start",
+                SystemClock.uptimeMillis() - FaceRecognitionApplication.getStartTimeMs());
+      }
+    }
+    catch (Exception ex){
+      LOGGER.e(ex, "Recognition failed");
+    }
 
-          if (resultsAux.size() > 0) {
+    for (int i = 0; i < faceCount; i++) {
+      final RectF boundingBox = boundingBoxes.get(i);
 
-            SimilarityClassifier.Recognition result = resultsAux.get(0);
+      String label = "";
+      float confidence = -1f;
+      Integer color = Color.BLUE;
+      Object extra = null;
 
-            extra = result.getExtra();
-            float conf = result.getDistance();
-            if (conf < 1.0f) {
+      if (recognized) {
 
-              confidence = conf;
-              label = result.getTitle();
-              if (result.getId().equals("0")) {
-                color = Color.GREEN;
-              } else {
-                color = Color.RED;
-              }
-            }
+        final SimilarityClassifier.Match match = matches[i];
 
-          }
-        }
-        catch (Exception ex){}
+        extra = extras == null ? null : extras[i];
+        float conf = match.getDistance();
+        if (conf < 1.0f) {
 
-        if (getCameraFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
-          // camera is frontal so the image is flipped horizontally
-          Matrix flip = new Matrix();
-          if (sensorOrientation == 90 || sensorOrientation == 270) {
-            flip.postScale(1, -1, previewWidth / 2.0f, previewHeight / 2.0f);
-          }
-          else {
-            flip.postScale(-1, 1, previewWidth / 2.0f, previewHeight / 2.0f);
-          }
-          flip.mapRect(boundingBox);
+          confidence = conf;
+          label = match.getTitle();
+          color = Color.GREEN;
         }
 
-        final SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
-                "0", label, confidence, boundingBox);
+      }
 
-        result.setColor(color);
-        result.setLocation(boundingBox);
-        result.setExtra(extra);
-        result.setCrop(crop);
-        mappedRecognitions.add(result);
+      if (frontCameraFlip != null) {
+        // camera is frontal so the image is flipped horizontally
+        frontCameraFlip.mapRect(boundingBox);
       }
+
+      final SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
+              "0", label, confidence, boundingBox);
+
+      result.setColor(color);
+      result.setLocation(boundingBox);
+      result.setExtra(extra);
+      result.setCrop(crops.get(i));
+      mappedRecognitions.add(result);
     }
 
     updateResults(currTimestamp, mappedRecognitions);
   }
 
+  // Last inference time of the current backend, followed by the ones of the others tried.
+  private String getInferenceTimes() {
+    final Backend current = detector == null ? backend : detector.getBackend();
+    final StringBuilder times = new StringBuilder();
+    times.append(lastProcessingTimeMs).append("ms ").append(current);
+    for (Map.Entry<Backend, Long> entry : backendLatencyMs.entrySet()) {
+      if (entry.getKey() != current) {
+        times.append(", ").append(entry.getValue()).append("ms ").append(entry.getKey());
+      }
+    }
+    return times.toString();
+  }
+
+  // Result holders for count faces, reused across frames.
+  private SimilarityClassifier.Match[] getMatches(final int count) {
+    if (matches.length < count) {
+      final int previous = matches.length;
+      matches = Arrays.copyOf(matches, count);
+      for (int i = previous; i < count; i++) {
+        matches[i] = new SimilarityClassifier.Match();
+      }
+    }
+    return matches;
+  }
+
+  // Input transform of the index-th face of a frame, reused across frames.
+  private Matrix getFaceTransform(final int index) {
+    while (faceTransforms.size() <= index) {
+      faceTransforms.add(new Matrix());
+    }
+    return faceTransforms.get(index);
+  }
+
+  // Upright face at its size in the portrait frame, edge pixels repeated where it leaves the frame.
+  private Bitmap sampleCrop(final YuvFrame frame, final RectF faceBB) {
+    final int width = (int) faceBB.width();
+    final int height = (int) faceBB.height();
+    if (width <= 0 || height <= 0) {
+      return null;
+    }
+    final Matrix cropToFrame = new Matrix();
+    cropToFrame.postTranslate((int) faceBB.left, (int) faceBB.top);
+    cropToFrame.postConcat(portraitToFrameTransform);
+    final float[] values = new float[9];
+    cropToFrame.getValues(values);
+
+    final int[] pixels = new int[width * height];
+    frame.sample(values, width, height, pixels);
+    return Bitmap.createBitmap(pixels, width, height, Config.ARGB_8888);
+  }
+
   @Override
   public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
     switch (requestCode) {
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tensorflow.lite.examples.detection;
+
+import android.app.Application;
+import android.os.SystemClock;
+
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Starts loading and warming up the face classifier as soon as the process starts, so it is
+ * ready by the time the camera delivers its first frames.
+ */
+public class FaceRecognitionApplication extends Application {
+  private static final Logger LOGGER = new Logger();
+
+  private static long startTimeMs;
+
+  private final ExecutorService loader =
+          Executors.newSingleThreadExecutor(
+                  r -> {
+                    final Thread thread = new Thread(r, "classifier-loader");
+                    thread.setDaemon(true);
+                    return thread;
+                  });
+  // Classifier loaded at startup, shared by every activity for the life of the process
+  private Future<SimilarityClassifier> classifier;
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    startTimeMs = SystemClock.uptimeMillis();
+    classifier = load();
+  }
+
+  /** Uptime at which the process started, in milliseconds. */
+  public static long getStartTimeMs() {
+    return startTimeMs;
+  }
+
+  /**
+   * The classifier loaded and warmed up in the background at startup. Every activity gets the
+   * same one, only the activity in the foreground uses it, and it is never closed: its gallery
+   * file stays mapped by a single instance. A load that failed is started again.
+   */
+  public synchronized Future<SimilarityClassifier> getClassifier() {
+    if (classifier.isDone()) {
+      try {
+        classifier.get();
+      } catch (final ExecutionException | InterruptedException e) {
+        classifier = load();
+      }
+    }
+    return classifier;
+  }
+
+  private Future<SimilarityClassifier> load() {
+    return loader.submit(
+            () -> {
+              final long loadStartTimeMs = SystemClock.uptimeMillis();
+              final SimilarityClassifier loaded = DetectorActivity.createClassifier(this);
+              final long now = SystemClock.uptimeMillis();
+              LOGGER.i("Classifier loaded in %dms, %dms after process start",
+                      now - loadStartTimeMs, now - startTimeMs);
+              return loaded;
+            });
+  }
+}
@@ -12,4 +12,8 @@ public class ConstantString {
 
     public final static String GETFACEDETECT_URL = URL + "/" +  FACEDETECT;
 
+    public static final String GALLERY = "gallery";
+
+    public final static String GETGALLERY_URL = URL + "/" +  GALLERY;
+
 }
@@ -0,0 +1,177 @@
+package org.tensorflow.lite.examples.detection.WebServices;
+
+import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Gallery snapshot or delta downloaded from the server.
+ *
+ * Binary format, big endian:
+ * <pre>
+ *   int    magic "FGDL"
+ *   short  format version
+ *   short  encoding, 0: float32, 1: int8 with one float scale per embedding
+ *   int    embedding dimension
+ *   long   base version, 0 for a full snapshot
+ *   long   gallery version after applying
+ *   int    record count
+ *   records: byte op (0: put, 1: remove), long identity version, UTF name,
+ *            and for a put the embedding in the given encoding
+ * </pre>
+ *
+ * Records are applied in order. The first record of a new identity version replaces everything
+ * registered for the identity; further put records with that same version add more embeddings to
+ * it. A record older than the version the identity is at is skipped, so replaying a delta or
+ * receiving one after a snapshot is harmless. A snapshot replaces every identity it lists as its
+ * records are applied; only with its last record are the local identities it does not list
+ * dropped, so the rest of the gallery stays recognized while the snapshot is applied.
+ */
+public class GalleryDelta {
+
+    private static final int MAGIC = 0x4647444c; // "FGDL"
+    private static final int FORMAT_VERSION = 1;
+    private static final int ENCODING_FLOAT32 = 0;
+    private static final int ENCODING_INT8 = 1;
+
+    public static final byte OP_PUT = 0;
+    public static final byte OP_REMOVE = 1;
+
+    private final long baseVersion;
+    private final long version;
+    private final int dimension;
+    private final byte[] ops;
+    private final long[] versions;
+    private final String[] names;
+    // embeddings: array of shape [records * dimension], unused for removals
+    private final float[] embeddings;
+
+    private GalleryDelta(long baseVersion, long version, int dimension, int records) {
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.dimension = dimension;
+        this.ops = new byte[records];
+        this.versions = new long[records];
+        this.names = new String[records];
+        this.embeddings = new float[records * dimension];
+    }
+
+    /**
+     * Parses a delta from the stream.
+     *
+     * @throws IOException if the stream is truncated or holds embeddings of another dimension.
+     */
+    public static GalleryDelta read(InputStream stream, int dimension) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION) {
+            throw new IOException("Not a version " + FORMAT_VERSION + " gallery delta");
+        }
+        int encoding = in.readShort();
+        if (encoding != ENCODING_FLOAT32 && encoding != ENCODING_INT8) {
+            throw new IOException("Unknown embedding encoding " + encoding);
+        }
+        int deltaDimension = in.readInt();
+        if (deltaDimension != dimension) {
+            throw new IOException(
+                    "Gallery delta has " + deltaDimension + "-d embeddings, the model " + dimension);
+        }
+        long baseVersion = in.readLong();
+        long version = in.readLong();
+        int records = in.readInt();
+
+        GalleryDelta delta = new GalleryDelta(baseVersion, version, dimension, records);
+        byte[] codes = new byte[dimension];
+        for (int record = 0; record < records; record++) {
+            delta.ops[record] = in.readByte();
+            delta.versions[record] = in.readLong();
+            delta.names[record] = in.readUTF();
+            if (delta.ops[record] != OP_PUT) {
+                continue;
+            }
+            int base = record * dimension;
+            if (encoding == ENCODING_FLOAT32) {
+                for (int i = 0; i < dimension; i++) {
+                    delta.embeddings[base + i] = in.readFloat();
+                }
+            } else {
+                float scale = in.readFloat();
+                in.readFully(codes);
+                for (int i = 0; i < dimension; i++) {
+                    delta.embeddings[base + i] = scale * codes[i];
+                }
+            }
+        }
+        return delta;
+    }
+
+    /** True for a full snapshot, which does not depend on the local gallery version. */
+    public boolean isSnapshot() {
+        return baseVersion == 0;
+    }
+
+    /** Gallery version the delta applies to. */
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    /** Gallery version once the delta is applied. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Number of records. */
+    public int size() {
+        return ops.length;
+    }
+
+    /**
+     * Applies records [from, to) to the classifier. The records of a snapshot are to be applied in
+     * order, from the first to the last, with the same identityVersions.
+     *
+     * @param identityVersions last applied version of every identity, updated in place.
+     * @return the number of records that changed the gallery.
+     */
+    public int apply(SimilarityClassifier classifier, Map<String, Long> identityVersions,
+                     int from, int to) {
+        if (isSnapshot() && from == 0) {
+            // The snapshot's versions are authoritative, every identity it lists gets replaced.
+            identityVersions.clear();
+        }
+        int applied = 0;
+        for (int record = from; record < to; record++) {
+            String name = names[record];
+            Long known = identityVersions.get(name);
+            if (known != null && known > versions[record]) {
+                continue;
+            }
+            boolean newVersion = known == null || known < versions[record];
+            identityVersions.put(name, versions[record]);
+
+            if (ops[record] == OP_REMOVE) {
+                if (!newVersion) {
+                    continue;
+                }
+                classifier.unregister(name);
+            } else {
+                if (newVersion) {
+                    classifier.unregister(name);
+                }
+                float[] embedding = new float[dimension];
+                System.arraycopy(embeddings, record * dimension, embedding, 0, dimension);
+                SimilarityClassifier.Recognition rec =
+                        new SimilarityClassifier.Recognition("0", name, 0f, null);
+                rec.setExtra(new float[][] {embedding});
+                classifier.register(name, rec);
+            }
+            applied++;
+        }
+        if (isSnapshot() && to == size()) {
+            // identityVersions now holds exactly the identities the snapshot lists.
+            classifier.unregisterAllExcept(identityVersions.keySet());
+        }
+        return applied;
+    }
+}
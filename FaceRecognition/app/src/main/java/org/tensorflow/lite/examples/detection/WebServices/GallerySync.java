@@ -0,0 +1,79 @@
+package org.tensorflow.lite.examples.detection.WebServices;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import org.tensorflow.lite.examples.detection.DetectorActivity;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads the gallery changes made on the server since {@code sinceVersion}.
+ *
+ * The server answers with a {@link GalleryDelta} based on that version, with a full snapshot if
+ * it no longer has the history, or with 304 when the gallery is current. Parsing happens on the
+ * task thread; the result is handed to {@link DetectorActivity#loadGalleryDelta}.
+ */
+public class GallerySync extends AsyncTask<Void, Void, GalleryDelta> {
+
+    private final static String TAG = GallerySync.class.getSimpleName();
+
+    private final DetectorActivity detectorActivity;
+    private final String urlString;
+    private final long sinceVersion;
+    private final int dimension;
+
+    public GallerySync(DetectorActivity detectorActivity, String urlString, long sinceVersion, int dimension) {
+        this.detectorActivity = detectorActivity;
+        this.urlString = urlString;
+        this.sinceVersion = sinceVersion;
+        this.dimension = dimension;
+    }
+
+    @Override
+    protected GalleryDelta doInBackground(Void... voids) {
+        HttpURLConnection con = null;
+        try {
+            URL url = new URL(urlString + "?since=" + sinceVersion + "&dimension=" + dimension);
+            con = (HttpURLConnection) url.openConnection();
+            con.setReadTimeout(10000);
+            con.setConnectTimeout(15000);
+            con.setRequestMethod("GET");
+
+            int responseCode = con.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.i(TAG, "gallery is up to date at version " + sinceVersion);
+                return null;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "gallery sync failed: " + responseCode);
+                return null;
+            }
+
+            InputStream in = new BufferedInputStream(con.getInputStream());
+            try {
+                return GalleryDelta.read(in, dimension);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "gallery sync failed", e);
+            return null;
+        } finally {
+            if (con != null) {
+                con.disconnect();
+            }
+        }
+    }
+
+    @Override
+    protected void onPostExecute(GalleryDelta delta) {
+        super.onPostExecute(delta);
+        if (delta != null && detectorActivity != null) {
+            detectorActivity.loadGalleryDelta(delta);
+        }
+    }
+}
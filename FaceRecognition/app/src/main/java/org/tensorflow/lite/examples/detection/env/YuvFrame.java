@@ -0,0 +1,194 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV 4:2:0 camera frame, either the YUV_420_888 planes of the Camera2 API or the NV21 buffer of
+ * the legacy Camera API, read in place without converting the whole frame to RGB.
+ *
+ * The frame only references the camera buffers, Camera2 planes included, so it is only valid until
+ * the camera gets them back. {@link #copy} makes a frame that outlives them. Reading is
+ * thread-safe.
+ */
+public class YuvFrame {
+  // Package-private for YuvToArgbConverter. Read with absolute gets only.
+  ByteBuffer yData;
+  ByteBuffer uData;
+  ByteBuffer vData;
+  int uOffset;
+  int vOffset;
+  int width;
+  int height;
+  int yRowStride;
+  int uvRowStride;
+  int uvPixelStride;
+
+  /** Points the frame at the planes of a YUV_420_888 image, usually direct buffers. */
+  public void setYuv420(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride) {
+    this.yData = yData;
+    this.uData = uData;
+    this.vData = vData;
+    this.uOffset = 0;
+    this.vOffset = 0;
+    this.width = width;
+    this.height = height;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+  }
+
+  /** Points the frame at an NV21 buffer: the Y plane followed by interleaved V and U samples. */
+  public void setNv21(final byte[] data, final int width, final int height) {
+    final int frameSize = width * height;
+    if (yData == null || !yData.hasArray() || yData.array() != data) {
+      yData = ByteBuffer.wrap(data);
+    }
+    this.uData = yData;
+    this.vData = yData;
+    this.uOffset = frameSize + 1;
+    this.vOffset = frameSize;
+    this.width = width;
+    this.height = height;
+    this.yRowStride = width;
+    this.uvRowStride = width;
+    this.uvPixelStride = 2;
+  }
+
+  /**
+   * A copy of the frame on the heap, valid after the camera buffers are reused. Only the bytes of
+   * the planes are copied, strides are kept.
+   */
+  public YuvFrame copy() {
+    final YuvFrame copy = new YuvFrame();
+    copy.yData = copyBuffer(yData);
+    copy.uData = uData == yData ? copy.yData : copyBuffer(uData);
+    copy.vData = vData == yData ? copy.yData : (vData == uData ? copy.uData : copyBuffer(vData));
+    copy.uOffset = uOffset;
+    copy.vOffset = vOffset;
+    copy.width = width;
+    copy.height = height;
+    copy.yRowStride = yRowStride;
+    copy.uvRowStride = uvRowStride;
+    copy.uvPixelStride = uvPixelStride;
+    return copy;
+  }
+
+  private static ByteBuffer copyBuffer(final ByteBuffer buffer) {
+    final ByteBuffer source = buffer.duplicate();
+    source.clear();
+    final byte[] bytes = new byte[source.capacity()];
+    source.get(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Bilinearly interpolated ARGB_8888 color at frame position (x, y), where (0, 0) is the center
+   * of the top left pixel. Positions outside the frame take the color of the closest edge pixel.
+   */
+  public int sampleArgb(float x, float y) {
+    x = x < 0 ? 0 : (x > width - 1 ? width - 1 : x);
+    y = y < 0 ? 0 : (y > height - 1 ? height - 1 : y);
+    final int luma = bilinear(yData, 0, yRowStride, 1, width, height, x, y);
+
+    // Chroma samples sit between their 2x2 luma pixels.
+    final int chromaW = (width + 1) >> 1;
+    final int chromaH = (height + 1) >> 1;
+    float cx = (x - 0.5f) * 0.5f;
+    float cy = (y - 0.5f) * 0.5f;
+    cx = cx < 0 ? 0 : (cx > chromaW - 1 ? chromaW - 1 : cx);
+    cy = cy < 0 ? 0 : (cy > chromaH - 1 ? chromaH - 1 : cy);
+    final int u = bilinear(uData, uOffset, uvRowStride, uvPixelStride, chromaW, chromaH, cx, cy);
+    final int v = bilinear(vData, vOffset, uvRowStride, uvPixelStride, chromaW, chromaH, cx, cy);
+
+    return ImageUtils.YUV2RGB(luma, u, v);
+  }
+
+  /**
+   * Samples an outWidth x outHeight image out of the frame into ARGB_8888 pixels.
+   *
+   * @param outToFrame Affine transform from output to frame coordinates, as the 9 values of an
+   *     android.graphics.Matrix. Pixel centers are mapped, so a pure scale resamples the way a
+   *     filtered Canvas draw does.
+   */
+  public void sample(
+      final float[] outToFrame, final int outWidth, final int outHeight, final int[] out) {
+    final float a = outToFrame[0];
+    final float b = outToFrame[1];
+    final float d = outToFrame[3];
+    final float e = outToFrame[4];
+    // Frame position of the center of the first output pixel, in sampling coordinates.
+    final float x0 = 0.5f * a + 0.5f * b + outToFrame[2] - 0.5f;
+    final float y0 = 0.5f * d + 0.5f * e + outToFrame[5] - 0.5f;
+
+    for (int row = 0, i = 0; row < outHeight; row++) {
+      float x = x0 + row * b;
+      float y = y0 + row * e;
+      for (int col = 0; col < outWidth; col++, i++) {
+        out[i] = sampleArgb(x, y);
+        x += a;
+        y += d;
+      }
+    }
+  }
+
+  // Bilinear value of a plane at (x, y), which must lie within [0, w - 1] x [0, h - 1], rounded
+  // to an integer. The weights have 8 bits of precision.
+  private static int bilinear(
+      final ByteBuffer data,
+      final int offset,
+      final int rowStride,
+      final int pixelStride,
+      final int w,
+      final int h,
+      final float x,
+      final float y) {
+    final int x0 = (int) x;
+    final int y0 = (int) y;
+    final int x1 = x0 + 1 < w ? x0 + 1 : x0;
+    final int y1 = y0 + 1 < h ? y0 + 1 : y0;
+    final int fx = (int) ((x - x0) * 256 + 0.5f);
+    final int fy = (int) ((y - y0) * 256 + 0.5f);
+
+    final int row0 = offset + y0 * rowStride;
+    final int row1 = offset + y1 * rowStride;
+    final int p00 = 0xff & data.get(row0 + x0 * pixelStride);
+    final int p01 = 0xff & data.get(row0 + x1 * pixelStride);
+    final int p10 = 0xff & data.get(row1 + x0 * pixelStride);
+    final int p11 = 0xff & data.get(row1 + x1 * pixelStride);
+
+    final int top = (p00 << 8) + (p01 - p00) * fx;
+    final int bottom = (p10 << 8) + (p11 - p10) * fx;
+    return ((top << 8) + (bottom - top) * fy + (1 << 15)) >> 16;
+  }
+}
@@ -0,0 +1,373 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts YUV frames to ARGB_8888 in row stripes on a small worker pool, the calling thread
+ * taking the first stripe. Output is identical to {@link
+ * ImageUtils#convertYUV420SPToARGB8888} and {@link ImageUtils#convertYUV420ToARGB8888}.
+ *
+ * The per-pixel products of {@link ImageUtils#YUV2RGB} are read from tables, computed once for
+ * every pair of pixels sharing a chroma sample, and clamped without branches.
+ *
+ * A converter is meant to be used from one thread at a time.
+ */
+public class YuvToArgbConverter {
+  // Products of YUV2RGB indexed by the 8-bit sample.
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] RV_TABLE = new int[256];
+  private static final int[] GU_TABLE = new int[256];
+  private static final int[] GV_TABLE = new int[256];
+  private static final int[] BU_TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      Y_TABLE[i] = 1192 * Math.max(i - 16, 0);
+      RV_TABLE[i] = 1634 * (i - 128);
+      GU_TABLE[i] = -400 * (i - 128);
+      GV_TABLE[i] = -833 * (i - 128);
+      BU_TABLE[i] = 2066 * (i - 128);
+    }
+  }
+
+  private final int stripes;
+  private final ExecutorService executor;
+  private final List<Future<?>> futures = new ArrayList<>();
+
+  /** @param threads Threads converting a frame, the calling one included. */
+  public YuvToArgbConverter(final int threads) {
+    stripes = Math.max(1, threads);
+    if (stripes == 1) {
+      executor = null;
+      return;
+    }
+    executor =
+        Executors.newFixedThreadPool(
+            stripes - 1,
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "yuv-conversion");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+  }
+
+  /** Drop-in replacement for {@link ImageUtils#convertYUV420SPToARGB8888}. */
+  public void convertYUV420SPToARGB8888(
+      final byte[] input, final int width, final int height, final int[] output) {
+    final int frameSize = width * height;
+    final ByteBuffer buffer = ByteBuffer.wrap(input);
+    // NV21 is the YUV_420_888 layout with V first, interleaved rows of width bytes.
+    convertYUV420ToARGB8888(
+        buffer, frameSize + 1, buffer, frameSize, buffer, width, height, width, width, 2, output);
+  }
+
+  /** Drop-in replacement for {@link ImageUtils#convertYUV420ToARGB8888}. */
+  public void convertYUV420ToARGB8888(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    convertYUV420ToARGB8888(
+        ByteBuffer.wrap(uData),
+        0,
+        ByteBuffer.wrap(vData),
+        0,
+        ByteBuffer.wrap(yData),
+        width,
+        height,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        out);
+  }
+
+  /** Converts the whole frame, reading its planes in place. */
+  public void convert(final YuvFrame frame, final int[] out) {
+    convertYUV420ToARGB8888(
+        frame.uData,
+        frame.uOffset,
+        frame.vData,
+        frame.vOffset,
+        frame.yData,
+        frame.width,
+        frame.height,
+        frame.yRowStride,
+        frame.uvRowStride,
+        frame.uvPixelStride,
+        out);
+  }
+
+  /**
+   * Converts the frame shrunk by {@code factor} in both directions and rotated clockwise by
+   * {@code rotation} degrees, the way ImageUtils.getTransformationMatrix maps it. Each output pixel
+   * averages the luma of its factor x factor block and takes the chroma sample closest to the
+   * block center, so dropped pixels are never converted.
+   *
+   * @param rotation A multiple of 90.
+   * @param out Receives (width / factor) x (height / factor) pixels, rows and columns swapped for
+   *     rotations of 90 and 270.
+   */
+  public void convertDecimated(
+      final YuvFrame frame, final int factor, final int rotation, final int[] out) {
+    convertDecimated(frame, factor, rotation, false, out);
+  }
+
+  /**
+   * Same as {@link #convertDecimated(YuvFrame, int, int, int[])}, the output also flipped
+   * left to right after the rotation when {@code mirror} is set, the way front camera previews are
+   * shown. A factor of 1 converts at full resolution.
+   */
+  public void convertDecimated(
+      final YuvFrame frame,
+      final int factor,
+      final int rotation,
+      final boolean mirror,
+      final int[] out) {
+    final int width = frame.width / factor;
+    final int height = frame.height / factor;
+    // Output position of frame pixel (0, 0), and how it moves along a frame row and column.
+    int x0;
+    int y0;
+    int dxPixel;
+    int dyPixel;
+    int dxRow;
+    int dyRow;
+    final int outWidth;
+    switch (((rotation % 360) + 360) % 360) {
+      case 90:
+        outWidth = height;
+        x0 = height - 1;
+        y0 = 0;
+        dxPixel = 0;
+        dyPixel = 1;
+        dxRow = -1;
+        dyRow = 0;
+        break;
+      case 180:
+        outWidth = width;
+        x0 = width - 1;
+        y0 = height - 1;
+        dxPixel = -1;
+        dyPixel = 0;
+        dxRow = 0;
+        dyRow = -1;
+        break;
+      case 270:
+        outWidth = height;
+        x0 = 0;
+        y0 = width - 1;
+        dxPixel = 0;
+        dyPixel = -1;
+        dxRow = 1;
+        dyRow = 0;
+        break;
+      default:
+        outWidth = width;
+        x0 = 0;
+        y0 = 0;
+        dxPixel = 1;
+        dyPixel = 0;
+        dxRow = 0;
+        dyRow = 1;
+        break;
+    }
+    if (mirror) {
+      x0 = outWidth - 1 - x0;
+      dxPixel = -dxPixel;
+      dxRow = -dxRow;
+    }
+    // Output index of the first pixel of a frame row, and the step between its pixels.
+    final int first = y0 * outWidth + x0;
+    final int rowStep = dyRow * outWidth + dxRow;
+    final int pixelStep = dyPixel * outWidth + dxPixel;
+    runStripes(
+        height,
+        (from, to) ->
+            convertDecimatedRows(
+                frame, factor, width, out, first, rowStep, pixelStep, from, to));
+  }
+
+  /** Stops the worker threads. */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  private void convertYUV420ToARGB8888(
+      final ByteBuffer uData,
+      final int uOffset,
+      final ByteBuffer vData,
+      final int vOffset,
+      final ByteBuffer yData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    runStripes(
+        height,
+        (from, to) ->
+            convertRows(
+                yData, uData, uOffset, vData, vOffset, width, yRowStride, uvRowStride,
+                uvPixelStride, out, from, to));
+  }
+
+  /** Converts rows [from, to) of the output. */
+  private interface RowTask {
+    void run(int from, int to);
+  }
+
+  // Splits rows into one stripe per thread and waits for all of them.
+  private void runStripes(final int rows, final RowTask task) {
+    final int rowsPerStripe = (rows + stripes - 1) / stripes;
+    futures.clear();
+    for (int from = rowsPerStripe; from < rows; from += rowsPerStripe) {
+      final int start = from;
+      final int end = Math.min(from + rowsPerStripe, rows);
+      futures.add(executor.submit(() -> task.run(start, end)));
+    }
+    task.run(0, Math.min(rowsPerStripe, rows));
+
+    // The stripes write into the output, which the caller reads once this returns.
+    boolean interrupted = false;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      } catch (final InterruptedException e) {
+        interrupted = true;
+        i--;
+      } catch (final ExecutionException e) {
+        throw new RuntimeException("YUV conversion failed", e.getCause());
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Converts rows [from, to) of the frame.
+  private static void convertRows(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final int uOffset,
+      final ByteBuffer vData,
+      final int vOffset,
+      final int width,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out,
+      final int from,
+      final int to) {
+    for (int j = from; j < to; j++) {
+      final int pY = yRowStride * j;
+      final int pUV = uvRowStride * (j >> 1);
+      int op = width * j;
+
+      for (int i = 0; i < width; i += 2) {
+        final int uvp = pUV + (i >> 1) * uvPixelStride;
+        final int u = 0xff & uData.get(uOffset + uvp);
+        final int v = 0xff & vData.get(vOffset + uvp);
+        final int rUv = RV_TABLE[v];
+        final int gUv = GU_TABLE[u] + GV_TABLE[v];
+        final int bUv = BU_TABLE[u];
+
+        int y = Y_TABLE[0xff & yData.get(pY + i)];
+        out[op++] = toArgb(y + rUv, y + gUv, y + bUv);
+        if (i + 1 < width) {
+          y = Y_TABLE[0xff & yData.get(pY + i + 1)];
+          out[op++] = toArgb(y + rUv, y + gUv, y + bUv);
+        }
+      }
+    }
+  }
+
+  // Converts rows [from, to) of the decimated, unrotated frame.
+  private static void convertDecimatedRows(
+      final YuvFrame frame,
+      final int factor,
+      final int width,
+      final int[] out,
+      final int first,
+      final int rowStep,
+      final int pixelStep,
+      final int from,
+      final int to) {
+    final ByteBuffer yData = frame.yData;
+    final ByteBuffer uData = frame.uData;
+    final ByteBuffer vData = frame.vData;
+    final int yRowStride = frame.yRowStride;
+    final int uvRowStride = frame.uvRowStride;
+    final int uvPixelStride = frame.uvPixelStride;
+    final int blockSize = factor * factor;
+    // Offset of the chroma sample closest to a block center, in luma pixels.
+    final int center = (factor - 1) >> 1;
+
+    for (int j = from; j < to; j++) {
+      final int pY = yRowStride * j * factor;
+      final int pUV = uvRowStride * ((j * factor + center) >> 1);
+      int op = first + rowStep * j;
+
+      for (int i = 0; i < width; i++, op += pixelStep) {
+        int sum = 0;
+        for (int by = 0, p = pY + i * factor; by < factor; by++, p += yRowStride) {
+          for (int bx = 0; bx < factor; bx++) {
+            sum += 0xff & yData.get(p + bx);
+          }
+        }
+        final int uvp = pUV + ((i * factor + center) >> 1) * uvPixelStride;
+        final int u = 0xff & uData.get(frame.uOffset + uvp);
+        final int v = 0xff & vData.get(frame.vOffset + uvp);
+
+        final int y = Y_TABLE[(sum + (blockSize >> 1)) / blockSize];
+        out[op] = toArgb(y + RV_TABLE[v], y + GU_TABLE[u] + GV_TABLE[v], y + BU_TABLE[u]);
+      }
+    }
+  }
+
+  private static int toArgb(final int r, final int g, final int b) {
+    return 0xff000000
+        | ((clamp(r) << 6) & 0xff0000)
+        | ((clamp(g) >> 2) & 0xff00)
+        | ((clamp(b) >> 10) & 0xff);
+  }
+
+  // Clamps to [0, kMaxChannelValue] with sign masks instead of branches.
+  private static int clamp(int x) {
+    x &= ~(x >> 31);
+    final int over = (ImageUtils.kMaxChannelValue - x) >> 31;
+    return (x & ~over) | (ImageUtils.kMaxChannelValue & over);
+  }
+}
@@ -0,0 +1,58 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import org.tensorflow.lite.Interpreter;
+
+/** Kernels the interpreter runs the model with. */
+public enum Backend {
+  /** Reference TFLite CPU kernels. */
+  CPU,
+
+  /** XNNPACK CPU kernels, usually the fastest choice on devices without an accelerator. */
+  XNNPACK,
+
+  /**
+   * XNNPACK allowed to compute float models in fp16 on cores that support it. Faster again, the
+   * embeddings differ slightly from the fp32 ones.
+   */
+  XNNPACK_FP16,
+
+  /** Android Neural Networks API, which may hand the model to a DSP, NPU or GPU. */
+  NNAPI;
+
+  /** Interpreter options running the model on this backend. */
+  Interpreter.Options createOptions() {
+    final Interpreter.Options options = new Interpreter.Options();
+    switch (this) {
+      case CPU:
+        options.setUseXNNPACK(false);
+        break;
+      case XNNPACK:
+        options.setUseXNNPACK(true);
+        break;
+      case XNNPACK_FP16:
+        options.setUseXNNPACK(true);
+        options.setAllowFp16PrecisionForFp32(true);
+        break;
+      case NNAPI:
+        options.setUseXNNPACK(false);
+        options.setUseNNAPI(true);
+        break;
+    }
+    return options;
+  }
+}
@@ -0,0 +1,191 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lets any thread register and remove faces while another one searches, without a lock on the
+ * search path.
+ *
+ * The wrapped index is only ever touched by the search thread, the last thread that called
+ * {@link #takeOver} or {@link #search}. Updates made on that thread are applied at once. Updates
+ * made on any other thread are copied onto a lock-free queue, and the search thread applies up to
+ * {@code maxUpdatesPerSearch} of them before each lookup. Every lookup therefore sees a consistent
+ * gallery, and a burst of registrations costs each frame a bounded amount of work instead of
+ * racing with it. The search thread catches up on the rest through {@link #takeOver} whenever it
+ * has nothing to look up.
+ *
+ * Lookups, {@link #getName} and {@link #get} are meant to be called from the search thread only.
+ */
+public class ConcurrentGallery implements EmbeddingIndex {
+
+  public static final int DEFAULT_MAX_UPDATES_PER_SEARCH = 16;
+
+  /** A queued put, a removal when embedding is null, or a retainAll when retained is set. */
+  private static final class Update {
+    final String name;
+    final float[] embedding;
+    final Set<String> retained;
+
+    Update(final String name, final float[] embedding, final Set<String> retained) {
+      this.name = name;
+      this.embedding = embedding;
+      this.retained = retained;
+    }
+  }
+
+  private final EmbeddingIndex index;
+  private final int maxUpdatesPerSearch;
+  private final ConcurrentLinkedQueue<Update> pending = new ConcurrentLinkedQueue<>();
+  private volatile Thread searchThread;
+  // Size of the index after the last applied update, readable from any thread.
+  private volatile int size;
+
+  public ConcurrentGallery(final EmbeddingIndex index) {
+    this(index, DEFAULT_MAX_UPDATES_PER_SEARCH);
+  }
+
+  /** @param maxUpdatesPerSearch Queued updates applied before a lookup at most. */
+  public ConcurrentGallery(final EmbeddingIndex index, final int maxUpdatesPerSearch) {
+    this.index = index;
+    this.maxUpdatesPerSearch = maxUpdatesPerSearch;
+    this.size = index.size();
+  }
+
+  @Override
+  public int dimension() {
+    return index.dimension();
+  }
+
+  @Override
+  public DistanceMode getDistanceMode() {
+    return index.getDistanceMode();
+  }
+
+  /** Number of stored embeddings, not counting updates still queued. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public String getName(final int id) {
+    return index.getName(id);
+  }
+
+  /**
+   * Stores the embedding, or queues a copy of it when called off the search thread.
+   *
+   * @return the id of the entry, or -1 if the update was queued.
+   */
+  @Override
+  public int put(final String name, final float[] embedding) {
+    if (Thread.currentThread() != searchThread) {
+      pending.add(new Update(name, embedding.clone(), null));
+      return -1;
+    }
+    applyPending(Integer.MAX_VALUE);
+    final int id = index.put(name, embedding);
+    size = index.size();
+    return id;
+  }
+
+  @Override
+  public boolean get(final String name, final float[] out) {
+    return index.get(name, out);
+  }
+
+  /**
+   * Removes the identity, or queues the removal when called off the search thread.
+   *
+   * @return false if the identity is not registered; always true when the removal was queued.
+   */
+  @Override
+  public boolean remove(final String name) {
+    if (Thread.currentThread() != searchThread) {
+      pending.add(new Update(name, null, null));
+      return true;
+    }
+    applyPending(Integer.MAX_VALUE);
+    final boolean removed = index.remove(name);
+    size = index.size();
+    return removed;
+  }
+
+  /**
+   * Removes every identity not in names, or queues a copy of names when called off the search
+   * thread.
+   */
+  @Override
+  public void retainAll(final Set<String> names) {
+    if (Thread.currentThread() != searchThread) {
+      pending.add(new Update(null, null, new HashSet<>(names)));
+      return;
+    }
+    applyPending(Integer.MAX_VALUE);
+    index.retainAll(names);
+    size = index.size();
+  }
+
+  @Override
+  public void search(final float[] embedding, final NearestNeighbors result) {
+    if (searchThread != Thread.currentThread()) {
+      takeOver();
+    } else {
+      applyPending(maxUpdatesPerSearch);
+    }
+    index.search(embedding, result);
+  }
+
+  /**
+   * Makes the calling thread the search thread and applies every queued update. The previous
+   * search thread must no longer be using the gallery.
+   */
+  public void takeOver() {
+    searchThread = Thread.currentThread();
+    applyPending(Integer.MAX_VALUE);
+  }
+
+  /** Applies the queued updates and releases the wrapped index. No lookup may still be running. */
+  @Override
+  public void close() {
+    applyPending(Integer.MAX_VALUE);
+    index.close();
+  }
+
+  private void applyPending(final int maxUpdates) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    for (int i = 0; i < maxUpdates; i++) {
+      final Update update = pending.poll();
+      if (update == null) {
+        break;
+      }
+      if (update.retained != null) {
+        index.retainAll(update.retained);
+      } else if (update.embedding == null) {
+        index.remove(update.name);
+      } else {
+        index.put(update.name, update.embedding);
+      }
+    }
+    size = index.size();
+  }
+}
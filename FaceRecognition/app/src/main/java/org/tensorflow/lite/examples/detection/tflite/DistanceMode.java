@@ -0,0 +1,29 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/** How embeddings are compared against the registered gallery. */
+public enum DistanceMode {
+  /** Plain L2 distance between the raw model outputs. */
+  EUCLIDEAN,
+
+  /**
+   * L2 distance between unit length embeddings. Vectors are normalized once when they are
+   * registered and once per query, so the distance is a monotonic function of cosine similarity
+   * and lies in [0, 2].
+   */
+  COSINE
+}
@@ -0,0 +1,273 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Flat store of registered face embeddings.
+ *
+ * All vectors live in one row-major {@code float[]} with a stride of {@code dimension}; row i
+ * belongs to the identity {@code names[i]}. A lookup is a single linear pass over contiguous
+ * memory, with no per-row object, cast or allocation. Candidates are compared on squared
+ * distance and abandoned as soon as their partial sum can no longer beat the current best.
+ *
+ * With {@link #enableParallelSearch} galleries above a size threshold are split into contiguous
+ * shards that are scanned on a worker pool, and the per-shard best candidates are merged.
+ */
+public class EmbeddingGallery implements EmbeddingIndex {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int dimension;
+  private final DistanceMode distanceMode;
+  // embeddings: array of shape [capacity * dimension], only the first count rows are valid
+  private float[] embeddings;
+  // names: identity registered for every row
+  private String[] names;
+  private final HashMap<String, Integer> rows = new HashMap<>();
+  private int count;
+  // holds the normalized query in COSINE mode
+  private final float[] normalizedQuery;
+
+  // Parallel scan, null until enabled.
+  private ExecutorService searchPool;
+  private List<Shard> shards;
+  private int parallelThreshold;
+
+  /** Scans one contiguous range of rows of a parallel search. */
+  private final class Shard implements Callable<Void> {
+    NearestNeighbors result;
+    float[] query;
+    int from;
+    int to;
+
+    @Override
+    public Void call() {
+      result.clear();
+      scan(query, from, to, result);
+      return null;
+    }
+  }
+
+  public EmbeddingGallery(final int dimension) {
+    this(dimension, DistanceMode.EUCLIDEAN);
+  }
+
+  public EmbeddingGallery(final int dimension, final DistanceMode distanceMode) {
+    this.dimension = dimension;
+    this.distanceMode = distanceMode;
+    this.normalizedQuery = new float[dimension];
+    this.embeddings = new float[INITIAL_CAPACITY * dimension];
+    this.names = new String[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Splits lookups in galleries larger than {@code threshold} rows into {@code threads} shards
+   * scanned concurrently. Smaller galleries keep the single-threaded scan.
+   */
+  public void enableParallelSearch(final int threads, final int threshold) {
+    if (searchPool != null) {
+      searchPool.shutdown();
+    }
+    searchPool = new ForkJoinPool(threads);
+    shards = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      shards.add(new Shard());
+    }
+    parallelThreshold = threshold;
+  }
+
+  @Override
+  public int dimension() {
+    return dimension;
+  }
+
+  @Override
+  public DistanceMode getDistanceMode() {
+    return distanceMode;
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public String getName(final int row) {
+    return names[row];
+  }
+
+  /**
+   * Stores the embedding for an identity. A new identity is appended at the end of the gallery,
+   * an already known one has its row overwritten in place.
+   *
+   * @return the row the embedding was written to.
+   */
+  @Override
+  public int put(final String name, final float[] embedding) {
+    Integer row = rows.get(name);
+    if (row == null) {
+      ensureCapacity(count + 1);
+      row = count++;
+      names[row] = name;
+      rows.put(name, row);
+    }
+    System.arraycopy(embedding, 0, embeddings, row * dimension, dimension);
+    if (distanceMode == DistanceMode.COSINE) {
+      VectorMath.normalize(embeddings, row * dimension, dimension);
+    }
+    return row;
+  }
+
+  @Override
+  public boolean get(final String name, final float[] out) {
+    final Integer row = rows.get(name);
+    if (row == null) {
+      return false;
+    }
+    System.arraycopy(embeddings, row * dimension, out, 0, dimension);
+    return true;
+  }
+
+  /**
+   * Removes every identity not in names, last row first: the row moved into a freed one has been
+   * kept already.
+   */
+  @Override
+  public void retainAll(final Set<String> names) {
+    for (int row = count - 1; row >= 0; row--) {
+      final String name = getName(row);
+      if (!names.contains(name)) {
+        remove(name);
+      }
+    }
+  }
+
+  /** Removes an identity by moving the last row into its place. */
+  @Override
+  public boolean remove(final String name) {
+    final Integer row = rows.remove(name);
+    if (row == null) {
+      return false;
+    }
+    final int last = --count;
+    if (row != last) {
+      System.arraycopy(embeddings, last * dimension, embeddings, row * dimension, dimension);
+      names[row] = names[last];
+      rows.put(names[row], row);
+    }
+    names[last] = null;
+    return true;
+  }
+
+  /**
+   * Collects the rows closest to the query (using the L2 norm) into {@code result}, which is
+   * cleared first and sorted by ascending squared distance on return.
+   */
+  @Override
+  public void search(final float[] embedding, final NearestNeighbors result) {
+    final float[] query = prepareQuery(embedding);
+    result.clear();
+    if (searchPool == null || count <= parallelThreshold || !searchParallel(query, result)) {
+      scan(query, 0, count, result);
+    }
+    result.sort();
+  }
+
+  @Override
+  public void close() {
+    if (searchPool != null) {
+      searchPool.shutdown();
+    }
+  }
+
+  // Offers rows [from, to) to result.
+  private void scan(
+      final float[] query, final int from, final int to, final NearestNeighbors result) {
+    final float[] data = embeddings;
+    final int dim = dimension;
+
+    float threshold = result.threshold();
+    for (int row = from, base = from * dim; row < to; row++, base += dim) {
+      final float sum = VectorMath.squaredDistance(query, data, base, dim, threshold);
+      if (sum < threshold && result.offer(row, sum)) {
+        threshold = result.threshold();
+      }
+    }
+  }
+
+  // Scans the shards on the pool and merges their candidates, false if interrupted.
+  private boolean searchParallel(final float[] query, final NearestNeighbors result) {
+    final int rowsPerShard = (count + shards.size() - 1) / shards.size();
+    for (int i = 0; i < shards.size(); i++) {
+      final Shard shard = shards.get(i);
+      if (shard.result == null || shard.result.capacity() != result.capacity()) {
+        shard.result = new NearestNeighbors(result.capacity());
+      }
+      // A shard that fails must not leave the candidates of the previous query behind.
+      shard.result.clear();
+      shard.query = query;
+      shard.from = Math.min(i * rowsPerShard, count);
+      shard.to = Math.min(shard.from + rowsPerShard, count);
+    }
+    try {
+      for (final Future<Void> future : searchPool.invokeAll(shards)) {
+        future.get();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (final ExecutionException e) {
+      throw new RuntimeException("Gallery search failed", e.getCause());
+    }
+    for (int i = 0; i < shards.size(); i++) {
+      final NearestNeighbors partial = shards.get(i).result;
+      for (int j = 0; j < partial.size(); j++) {
+        result.offer(partial.id(j), partial.distance(j));
+      }
+    }
+    return true;
+  }
+
+  // Returns the vector the gallery rows should be compared against.
+  private float[] prepareQuery(final float[] embedding) {
+    if (distanceMode != DistanceMode.COSINE) {
+      return embedding;
+    }
+    System.arraycopy(embedding, 0, normalizedQuery, 0, dimension);
+    VectorMath.normalize(normalizedQuery, 0, dimension);
+    return normalizedQuery;
+  }
+
+  private void ensureCapacity(final int required) {
+    if (required <= names.length) {
+      return;
+    }
+    final int capacity = Math.max(required, names.length * 2);
+    embeddings = Arrays.copyOf(embeddings, capacity * dimension);
+    names = Arrays.copyOf(names, capacity);
+  }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Set;
+
+/** Storage and nearest-neighbour lookup for the embeddings of registered faces. */
+public interface EmbeddingIndex {
+
+  int dimension();
+
+  DistanceMode getDistanceMode();
+
+  /** Number of stored embeddings. */
+  int size();
+
+  /** Identity the entry with the given id was registered under. */
+  String getName(int id);
+
+  /**
+   * Stores the embedding for an identity, replacing the one it had before.
+   *
+   * @return the id of the entry the embedding was stored in.
+   */
+  int put(String name, float[] embedding);
+
+  /**
+   * Copies the stored embedding of an identity into {@code out}. In COSINE mode it is the
+   * normalized embedding, in lossy stores an approximation of it.
+   *
+   * @return false if the identity is not registered.
+   */
+  boolean get(String name, float[] out);
+
+  /**
+   * Removes the embedding of an identity. The ids of other entries may change.
+   *
+   * @return false if the identity was not registered.
+   */
+  boolean remove(String name);
+
+  /** Removes every identity not in {@code names}. */
+  void retainAll(Set<String> names);
+
+  /**
+   * Collects the entries closest to the embedding into {@code result}, which is cleared first and
+   * sorted by ascending squared L2 distance on return. The embedding is not modified.
+   */
+  void search(float[] embedding, NearestNeighbors result);
+
+  /** Releases any file or native resources held by the index. */
+  void close();
+}
@@ -0,0 +1,533 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Hierarchical navigable small world graph over the registered embeddings.
+ *
+ * Every embedding is a node on layer 0 and, with exponentially decreasing probability, on the
+ * layers above it. A lookup descends greedily through the sparse upper layers and then runs a
+ * best-first search of width {@code efSearch} on layer 0, so its cost grows with log(N) instead
+ * of N. Nodes are linked as they are registered; {@code m} bounds the links per node and
+ * {@code efConstruction} the search width used to find them.
+ *
+ * Galleries with at most {@code exactSearchThreshold} entries are scanned exactly instead, which
+ * is both faster and lossless at that size. The graph is still maintained, so lookups switch over
+ * without a rebuild once the gallery grows past the threshold.
+ *
+ * Removed identities stay in the graph as routing nodes and are only left out of the results.
+ */
+public class HnswIndex implements EmbeddingIndex {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  public static final int DEFAULT_M = 16;
+  public static final int DEFAULT_EF_CONSTRUCTION = 100;
+  public static final int DEFAULT_EF_SEARCH = 48;
+  public static final int DEFAULT_EXACT_SEARCH_THRESHOLD = 1000;
+
+  private final int dimension;
+  private final DistanceMode distanceMode;
+  // Maximum links per node on the upper layers, twice that on layer 0.
+  private final int m;
+  private final int maxM0;
+  private final int efConstruction;
+  private final int exactSearchThreshold;
+  private int efSearch;
+  private final double levelMultiplier;
+  private final Random random = new Random(42);
+
+  // vectors: array of shape [capacity * dimension]
+  private float[] vectors;
+  // names: identity of every node, null once removed
+  private String[] names;
+  private final HashMap<String, Integer> rows = new HashMap<>();
+  private int count;
+  private int removed;
+
+  // Highest layer of every node.
+  private int[] levels;
+  // links0: array of shape [capacity * (maxM0 + 1)], link count followed by the links of a node.
+  private int[] links0;
+  // upperLinks: per node, array of shape [level * (m + 1)] for layers 1..level, null at level 0.
+  private int[][] upperLinks;
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+
+  // Per-operation scratch.
+  private final float[] query;
+  private int[] visited;
+  private int visitTag;
+  private int[] candidateIds = new int[INITIAL_CAPACITY];
+  private float[] candidateDistances = new float[INITIAL_CAPACITY];
+  private int candidateCount;
+  private final NearestNeighbors constructionResults;
+  private NearestNeighbors searchResults;
+  private final int[] selectIds;
+  private final float[] selectDistances;
+  private final boolean[] selectTaken;
+  private final int[] selected;
+  // Separate from selected, which link() still iterates while addLink() prunes.
+  private final int[] pruned;
+
+  public HnswIndex(final int dimension, final DistanceMode distanceMode) {
+    this(
+        dimension,
+        distanceMode,
+        DEFAULT_M,
+        DEFAULT_EF_CONSTRUCTION,
+        DEFAULT_EF_SEARCH,
+        DEFAULT_EXACT_SEARCH_THRESHOLD);
+  }
+
+  /**
+   * @param m Links kept per node on the upper layers; layer 0 keeps 2 * m. Higher values raise
+   *     recall and memory use.
+   * @param efConstruction Width of the search that picks the links of a new node.
+   * @param efSearch Width of the layer 0 search of a lookup, the recall/latency knob.
+   * @param exactSearchThreshold Galleries up to this size are scanned exactly.
+   */
+  public HnswIndex(
+      final int dimension,
+      final DistanceMode distanceMode,
+      final int m,
+      final int efConstruction,
+      final int efSearch,
+      final int exactSearchThreshold) {
+    if (m < 2) {
+      throw new IllegalArgumentException("m must be at least 2: " + m);
+    }
+    this.dimension = dimension;
+    this.distanceMode = distanceMode;
+    this.m = m;
+    this.maxM0 = 2 * m;
+    this.efConstruction = Math.max(efConstruction, maxM0);
+    this.efSearch = efSearch;
+    this.exactSearchThreshold = exactSearchThreshold;
+    this.levelMultiplier = 1.0 / Math.log(m);
+
+    this.vectors = new float[INITIAL_CAPACITY * dimension];
+    this.names = new String[INITIAL_CAPACITY];
+    this.levels = new int[INITIAL_CAPACITY];
+    this.links0 = new int[INITIAL_CAPACITY * (maxM0 + 1)];
+    this.upperLinks = new int[INITIAL_CAPACITY][];
+    this.visited = new int[INITIAL_CAPACITY];
+
+    this.query = new float[dimension];
+    this.constructionResults = new NearestNeighbors(this.efConstruction);
+    final int selectCapacity = Math.max(this.efConstruction, maxM0 + 1);
+    this.selectIds = new int[selectCapacity];
+    this.selectDistances = new float[selectCapacity];
+    this.selectTaken = new boolean[selectCapacity];
+    this.selected = new int[maxM0 + 1];
+    this.pruned = new int[maxM0 + 1];
+  }
+
+  /** Changes the width of the layer 0 search used by lookups. */
+  public void setEfSearch(final int efSearch) {
+    this.efSearch = efSearch;
+  }
+
+  @Override
+  public int dimension() {
+    return dimension;
+  }
+
+  @Override
+  public DistanceMode getDistanceMode() {
+    return distanceMode;
+  }
+
+  @Override
+  public int size() {
+    return count - removed;
+  }
+
+  @Override
+  public String getName(final int node) {
+    return names[node];
+  }
+
+  @Override
+  public int put(final String name, final float[] embedding) {
+    Integer node = rows.get(name);
+    final boolean known = node != null;
+    if (!known) {
+      ensureCapacity(count + 1);
+      node = count++;
+      names[node] = name;
+      rows.put(name, node);
+      levels[node] = randomLevel();
+      if (levels[node] > 0) {
+        upperLinks[node] = new int[levels[node] * (m + 1)];
+      }
+    }
+
+    final int base = node * dimension;
+    System.arraycopy(embedding, 0, vectors, base, dimension);
+    if (distanceMode == DistanceMode.COSINE) {
+      VectorMath.normalize(vectors, base, dimension);
+    }
+    link(node);
+    return node;
+  }
+
+  @Override
+  public boolean get(final String name, final float[] out) {
+    final Integer row = rows.get(name);
+    if (row == null) {
+      return false;
+    }
+    System.arraycopy(vectors, row * dimension, out, 0, dimension);
+    return true;
+  }
+
+  @Override
+  public void retainAll(final Set<String> names) {
+    for (final String name : new ArrayList<>(rows.keySet())) {
+      if (!names.contains(name)) {
+        remove(name);
+      }
+    }
+  }
+
+  @Override
+  public boolean remove(final String name) {
+    final Integer node = rows.remove(name);
+    if (node == null) {
+      return false;
+    }
+    names[node] = null;
+    removed++;
+    return true;
+  }
+
+  @Override
+  public void search(final float[] embedding, final NearestNeighbors result) {
+    final float[] q = prepareQuery(embedding);
+    result.clear();
+    if (count <= exactSearchThreshold) {
+      float threshold = Float.MAX_VALUE;
+      for (int node = 0, base = 0; node < count; node++, base += dimension) {
+        if (names[node] == null) {
+          continue;
+        }
+        final float distance = VectorMath.squaredDistance(q, vectors, base, dimension, threshold);
+        if (distance < threshold && result.offer(node, distance)) {
+          threshold = result.threshold();
+        }
+      }
+      result.sort();
+      return;
+    }
+
+    final int ef = Math.max(efSearch, result.capacity());
+    if (searchResults == null || searchResults.capacity() != ef) {
+      searchResults = new NearestNeighbors(ef);
+    }
+    searchResults.clear();
+    final int entry = descend(q, entryPoint, maxLevel, 0);
+    searchResults.offer(
+        entry, VectorMath.squaredDistance(q, vectors, entry * dimension, dimension));
+    searchLayer(q, 0, searchResults);
+    for (int i = 0; i < searchResults.size(); i++) {
+      if (names[searchResults.id(i)] != null) {
+        result.offer(searchResults.id(i), searchResults.distance(i));
+      }
+    }
+    result.sort();
+  }
+
+  @Override
+  public void close() {}
+
+  // Connects a node whose vector has just been written, replacing any links it already had.
+  private void link(final int node) {
+    if (entryPoint < 0) {
+      entryPoint = node;
+      maxLevel = levels[node];
+      return;
+    }
+    if (count == 1) {
+      return;
+    }
+
+    final int level = levels[node];
+    final float[] q = query;
+    System.arraycopy(vectors, node * dimension, q, 0, dimension);
+
+    int entry = descend(q, entryPoint, maxLevel, level);
+    for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+      final NearestNeighbors found = constructionResults;
+      found.clear();
+      found.offer(entry, VectorMath.squaredDistance(q, vectors, entry * dimension, dimension));
+      searchLayer(q, layer, found);
+      found.sort();
+
+      int candidates = 0;
+      for (int i = 0; i < found.size(); i++) {
+        if (found.id(i) != node) {
+          selectIds[candidates] = found.id(i);
+          selectDistances[candidates] = found.distance(i);
+          candidates++;
+        }
+      }
+      final int maxLinks = layer == 0 ? maxM0 : m;
+      final int linked = selectNeighbors(candidates, m, selected);
+
+      final int[] links = linkArray(node, layer);
+      final int offset = linkOffset(node, layer);
+      links[offset] = linked;
+      System.arraycopy(selected, 0, links, offset + 1, linked);
+      for (int i = 0; i < linked; i++) {
+        addLink(selected[i], node, layer, maxLinks);
+      }
+
+      if (found.size() > 0) {
+        entry = found.id(0) != node || found.size() == 1 ? found.id(0) : found.id(1);
+      }
+    }
+
+    if (level > maxLevel) {
+      maxLevel = level;
+      entryPoint = node;
+    }
+  }
+
+  // Adds target to the links of node, pruning them back to maxLinks if needed.
+  private void addLink(final int node, final int target, final int layer, final int maxLinks) {
+    final int[] links = linkArray(node, layer);
+    final int offset = linkOffset(node, layer);
+    final int linkCount = links[offset];
+    for (int i = 0; i < linkCount; i++) {
+      if (links[offset + 1 + i] == target) {
+        return;
+      }
+    }
+    if (linkCount < maxLinks) {
+      links[offset + 1 + linkCount] = target;
+      links[offset] = linkCount + 1;
+      return;
+    }
+
+    final int base = node * dimension;
+    int candidates = 0;
+    for (int i = 0; i <= linkCount; i++) {
+      final int id = i < linkCount ? links[offset + 1 + i] : target;
+      final float distance = VectorMath.squaredDistance(vectors, base, id * dimension, dimension);
+      // Insertion sort, the lists are at most maxM0 + 1 long.
+      int j = candidates++;
+      while (j > 0 && selectDistances[j - 1] > distance) {
+        selectIds[j] = selectIds[j - 1];
+        selectDistances[j] = selectDistances[j - 1];
+        j--;
+      }
+      selectIds[j] = id;
+      selectDistances[j] = distance;
+    }
+    final int linked = selectNeighbors(candidates, maxLinks, pruned);
+    links[offset] = linked;
+    System.arraycopy(pruned, 0, links, offset + 1, linked);
+  }
+
+  /**
+   * Picks up to maxCount links out of selectIds[0, candidates), which is sorted by distance. A
+   * candidate is preferred when it is closer to the base node than to every link picked so far,
+   * which keeps links pointing in different directions; the rest fill any remaining slots.
+   */
+  private int selectNeighbors(final int candidates, final int maxCount, final int[] out) {
+    int picked = 0;
+    for (int i = 0; i < candidates && picked < maxCount; i++) {
+      final int id = selectIds[i];
+      boolean diverse = true;
+      for (int j = 0; j < picked; j++) {
+        final float distance =
+            VectorMath.squaredDistance(vectors, id * dimension, out[j] * dimension, dimension);
+        if (distance < selectDistances[i]) {
+          diverse = false;
+          break;
+        }
+      }
+      selectTaken[i] = diverse;
+      if (diverse) {
+        out[picked++] = id;
+      }
+    }
+    for (int i = 0; i < candidates && picked < maxCount; i++) {
+      if (!selectTaken[i]) {
+        out[picked++] = selectIds[i];
+      }
+    }
+    Arrays.fill(selectTaken, 0, candidates, false);
+    return picked;
+  }
+
+  // Greedily walks from entry down to the given layer and returns the closest node found.
+  private int descend(final float[] q, final int entry, final int fromLayer, final int toLayer) {
+    int current = entry;
+    float currentDistance = VectorMath.squaredDistance(q, vectors, current * dimension, dimension);
+    for (int layer = fromLayer; layer > toLayer; layer--) {
+      boolean moved = true;
+      while (moved) {
+        moved = false;
+        final int[] links = linkArray(current, layer);
+        final int offset = linkOffset(current, layer);
+        final int linkCount = links[offset];
+        for (int i = 0; i < linkCount; i++) {
+          final int next = links[offset + 1 + i];
+          final float distance =
+              VectorMath.squaredDistance(q, vectors, next * dimension, dimension, currentDistance);
+          if (distance < currentDistance) {
+            current = next;
+            currentDistance = distance;
+            moved = true;
+          }
+        }
+      }
+    }
+    return current;
+  }
+
+  // Best-first search of one layer. results holds the entry points on input and the closest
+  // nodes found, up to its capacity, on output.
+  private void searchLayer(final float[] q, final int layer, final NearestNeighbors results) {
+    final int tag = nextVisitTag();
+    candidateCount = 0;
+    for (int i = 0; i < results.size(); i++) {
+      visited[results.id(i)] = tag;
+      pushCandidate(results.id(i), results.distance(i));
+    }
+
+    while (candidateCount > 0) {
+      final float closest = candidateDistances[0];
+      if (closest > results.threshold()) {
+        break;
+      }
+      final int current = popCandidate();
+      final int[] links = linkArray(current, layer);
+      final int offset = linkOffset(current, layer);
+      final int linkCount = links[offset];
+      for (int i = 0; i < linkCount; i++) {
+        final int next = links[offset + 1 + i];
+        if (visited[next] == tag) {
+          continue;
+        }
+        visited[next] = tag;
+        final float bound = results.threshold();
+        final float distance =
+            VectorMath.squaredDistance(q, vectors, next * dimension, dimension, bound);
+        if (distance < bound) {
+          results.offer(next, distance);
+          pushCandidate(next, distance);
+        }
+      }
+    }
+  }
+
+  // Candidate queue of searchLayer: a binary min-heap on distance.
+  private void pushCandidate(final int id, final float distance) {
+    if (candidateCount == candidateIds.length) {
+      candidateIds = Arrays.copyOf(candidateIds, candidateCount * 2);
+      candidateDistances = Arrays.copyOf(candidateDistances, candidateCount * 2);
+    }
+    int child = candidateCount++;
+    while (child > 0) {
+      final int parent = (child - 1) >> 1;
+      if (candidateDistances[parent] <= distance) {
+        break;
+      }
+      candidateIds[child] = candidateIds[parent];
+      candidateDistances[child] = candidateDistances[parent];
+      child = parent;
+    }
+    candidateIds[child] = id;
+    candidateDistances[child] = distance;
+  }
+
+  private int popCandidate() {
+    final int top = candidateIds[0];
+    final int lastId = candidateIds[--candidateCount];
+    final float lastDistance = candidateDistances[candidateCount];
+    int parent = 0;
+    while (true) {
+      int child = 2 * parent + 1;
+      if (child >= candidateCount) {
+        break;
+      }
+      if (child + 1 < candidateCount && candidateDistances[child + 1] < candidateDistances[child]) {
+        child++;
+      }
+      if (candidateDistances[child] >= lastDistance) {
+        break;
+      }
+      candidateIds[parent] = candidateIds[child];
+      candidateDistances[parent] = candidateDistances[child];
+      parent = child;
+    }
+    candidateIds[parent] = lastId;
+    candidateDistances[parent] = lastDistance;
+    return top;
+  }
+
+  private int nextVisitTag() {
+    if (++visitTag == 0) {
+      Arrays.fill(visited, 0);
+      visitTag = 1;
+    }
+    return visitTag;
+  }
+
+  private int[] linkArray(final int node, final int layer) {
+    return layer == 0 ? links0 : upperLinks[node];
+  }
+
+  private int linkOffset(final int node, final int layer) {
+    return layer == 0 ? node * (maxM0 + 1) : (layer - 1) * (m + 1);
+  }
+
+  private int randomLevel() {
+    final double uniform = 1.0 - random.nextDouble();
+    return (int) (-Math.log(uniform) * levelMultiplier);
+  }
+
+  private float[] prepareQuery(final float[] embedding) {
+    if (distanceMode != DistanceMode.COSINE) {
+      return embedding;
+    }
+    System.arraycopy(embedding, 0, query, 0, dimension);
+    VectorMath.normalize(query, 0, dimension);
+    return query;
+  }
+
+  private void ensureCapacity(final int required) {
+    if (required <= names.length) {
+      return;
+    }
+    final int capacity = Math.max(required, names.length * 2);
+    vectors = Arrays.copyOf(vectors, capacity * dimension);
+    names = Arrays.copyOf(names, capacity);
+    levels = Arrays.copyOf(levels, capacity);
+    links0 = Arrays.copyOf(links0, capacity * (maxM0 + 1));
+    upperLinks = Arrays.copyOf(upperLinks, capacity);
+    visited = Arrays.copyOf(visited, capacity);
+  }
+}
@@ -0,0 +1,492 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Inverted file index over the registered embeddings.
+ *
+ * The embeddings are partitioned by k-means into {@code nlist} clusters and a lookup only scans
+ * the lists of the {@code nprobe} centroids closest to the query. Compared to {@link HnswIndex}
+ * it needs no per-entry links, only the centroids and about two ints per entry.
+ *
+ * Clustering runs on a background thread, first once the gallery holds enough entries and then
+ * every time {@code reclusterThreshold} entries have been added or changed. The thread works on a
+ * copy of the vectors and publishes its result in one volatile write, which the index adopts on
+ * its next operation, so lookups never wait for it. In between, new entries are appended to the
+ * list of their closest current centroid. Until the first clustering is ready every lookup is an
+ * exact scan.
+ *
+ * Removed identities are taken out of their list; their rows are not reused.
+ */
+public class IvfIndex implements EmbeddingIndex {
+
+  private static final Logger LOGGER = new Logger();
+
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int KMEANS_ITERATIONS = 10;
+  // Points per centroid sampled to train the k-means.
+  private static final int TRAINING_POINTS_PER_LIST = 64;
+
+  public static final int DEFAULT_NLIST = 128;
+  public static final int DEFAULT_NPROBE = 8;
+  public static final int DEFAULT_RECLUSTER_THRESHOLD = 1024;
+
+  /** Lists published by the clustering thread. Never modified after publication. */
+  private static final class Clustering {
+    final int lists;
+    // centroids: array of shape [lists * dimension]
+    final float[] centroids;
+    // Entries of list i are listRows[listStarts[i], listStarts[i + 1]).
+    final int[] listStarts;
+    final int[] listRows;
+    // Number of entries that were clustered, later ones are assigned when adopting.
+    final int coveredRows;
+
+    Clustering(
+        final int lists,
+        final float[] centroids,
+        final int[] listStarts,
+        final int[] listRows,
+        final int coveredRows) {
+      this.lists = lists;
+      this.centroids = centroids;
+      this.listStarts = listStarts;
+      this.listRows = listRows;
+      this.coveredRows = coveredRows;
+    }
+  }
+
+  private final int dimension;
+  private final DistanceMode distanceMode;
+  private final int nlist;
+  private final int reclusterThreshold;
+  private int nprobe;
+
+  // vectors: array of shape [capacity * dimension]
+  private float[] vectors;
+  // names: identity of every row, null once removed
+  private String[] names;
+  private final HashMap<String, Integer> rows = new HashMap<>();
+  private int count;
+  private int removed;
+
+  private volatile Clustering published;
+  private int changesSinceClustering;
+  private final AtomicBoolean clusteringRunning = new AtomicBoolean();
+  private final ExecutorService clusteringExecutor;
+
+  // Lists in use, adopted from the last published clustering and extended by put().
+  private Clustering adopted;
+  private int[][] listRows;
+  private int[] listSizes;
+  // List every entry is in, -1 before the first clustering.
+  private int[] rowLists;
+
+  // Per-query scratch.
+  private final float[] query;
+  private NearestNeighbors probes;
+
+  public IvfIndex(final int dimension, final DistanceMode distanceMode) {
+    this(dimension, distanceMode, DEFAULT_NLIST, DEFAULT_NPROBE, DEFAULT_RECLUSTER_THRESHOLD);
+  }
+
+  /**
+   * @param nlist Number of k-means clusters.
+   * @param nprobe Number of clusters scanned per lookup, the recall/latency knob.
+   * @param reclusterThreshold Added or changed entries that trigger a new clustering.
+   */
+  public IvfIndex(
+      final int dimension,
+      final DistanceMode distanceMode,
+      final int nlist,
+      final int nprobe,
+      final int reclusterThreshold) {
+    this.dimension = dimension;
+    this.distanceMode = distanceMode;
+    this.nlist = nlist;
+    this.nprobe = nprobe;
+    this.reclusterThreshold = reclusterThreshold;
+    this.vectors = new float[INITIAL_CAPACITY * dimension];
+    this.names = new String[INITIAL_CAPACITY];
+    this.rowLists = new int[INITIAL_CAPACITY];
+    this.query = new float[dimension];
+    this.clusteringExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "ivf-clustering");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+              }
+            });
+  }
+
+  /** Changes the number of clusters scanned per lookup. */
+  public void setNprobe(final int nprobe) {
+    this.nprobe = nprobe;
+  }
+
+  @Override
+  public int dimension() {
+    return dimension;
+  }
+
+  @Override
+  public DistanceMode getDistanceMode() {
+    return distanceMode;
+  }
+
+  @Override
+  public int size() {
+    return count - removed;
+  }
+
+  @Override
+  public String getName(final int row) {
+    return names[row];
+  }
+
+  @Override
+  public int put(final String name, final float[] embedding) {
+    adoptPublished();
+    Integer row = rows.get(name);
+    if (row == null) {
+      ensureCapacity(count + 1);
+      row = count++;
+      names[row] = name;
+      rows.put(name, row);
+      rowLists[row] = -1;
+    }
+    final int base = row * dimension;
+    System.arraycopy(embedding, 0, vectors, base, dimension);
+    if (distanceMode == DistanceMode.COSINE) {
+      VectorMath.normalize(vectors, base, dimension);
+    }
+    if (adopted != null) {
+      assign(row);
+    }
+
+    changesSinceClustering++;
+    if (count >= nlist * 4
+        && (published == null || changesSinceClustering >= reclusterThreshold)) {
+      recluster();
+    }
+    return row;
+  }
+
+  @Override
+  public boolean get(final String name, final float[] out) {
+    final Integer row = rows.get(name);
+    if (row == null) {
+      return false;
+    }
+    System.arraycopy(vectors, row * dimension, out, 0, dimension);
+    return true;
+  }
+
+  @Override
+  public void retainAll(final Set<String> names) {
+    for (final String name : new ArrayList<>(rows.keySet())) {
+      if (!names.contains(name)) {
+        remove(name);
+      }
+    }
+  }
+
+  @Override
+  public boolean remove(final String name) {
+    adoptPublished();
+    final Integer row = rows.remove(name);
+    if (row == null) {
+      return false;
+    }
+    if (rowLists[row] >= 0) {
+      unlist(row);
+    }
+    names[row] = null;
+    removed++;
+    changesSinceClustering++;
+    return true;
+  }
+
+  /** Starts a clustering of the current entries unless one is already running. */
+  public void recluster() {
+    if (count < nlist || !clusteringRunning.compareAndSet(false, true)) {
+      return;
+    }
+    final int rowCount = count;
+    final float[] snapshot = Arrays.copyOf(vectors, rowCount * dimension);
+    changesSinceClustering = 0;
+    clusteringExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              final long start = System.currentTimeMillis();
+              published = cluster(snapshot, rowCount);
+              LOGGER.i(
+                  "Clustered %d embeddings into %d lists in %d ms",
+                  rowCount, nlist, System.currentTimeMillis() - start);
+            } finally {
+              clusteringRunning.set(false);
+            }
+          }
+        });
+  }
+
+  @Override
+  public void search(final float[] embedding, final NearestNeighbors result) {
+    adoptPublished();
+    final float[] q = prepareQuery(embedding);
+    final Clustering c = adopted;
+    result.clear();
+
+    if (c == null) {
+      float threshold = Float.MAX_VALUE;
+      for (int row = 0, base = 0; row < count; row++, base += dimension) {
+        if (names[row] == null) {
+          continue;
+        }
+        final float distance = VectorMath.squaredDistance(q, vectors, base, dimension, threshold);
+        if (distance < threshold && result.offer(row, distance)) {
+          threshold = result.threshold();
+        }
+      }
+      result.sort();
+      return;
+    }
+
+    final int probeCount = Math.min(nprobe, c.lists);
+    if (probes == null || probes.capacity() != probeCount) {
+      probes = new NearestNeighbors(probeCount);
+    }
+    probes.clear();
+    for (int list = 0; list < c.lists; list++) {
+      final float bound = probes.threshold();
+      final float distance =
+          VectorMath.squaredDistance(q, c.centroids, list * dimension, dimension, bound);
+      if (distance < bound) {
+        probes.offer(list, distance);
+      }
+    }
+
+    float threshold = Float.MAX_VALUE;
+    for (int p = 0; p < probes.size(); p++) {
+      final int list = probes.id(p);
+      final int[] members = listRows[list];
+      for (int i = 0; i < listSizes[list]; i++) {
+        final int row = members[i];
+        final float distance =
+            VectorMath.squaredDistance(q, vectors, row * dimension, dimension, threshold);
+        if (distance < threshold && result.offer(row, distance)) {
+          threshold = result.threshold();
+        }
+      }
+    }
+    result.sort();
+  }
+
+  @Override
+  public void close() {
+    clusteringExecutor.shutdownNow();
+  }
+
+  // Switches to the lists of a newly published clustering, if there is one.
+  private void adoptPublished() {
+    final Clustering c = published;
+    if (c == adopted) {
+      return;
+    }
+    adopted = c;
+    listRows = new int[c.lists][];
+    listSizes = new int[c.lists];
+    for (int list = 0; list < c.lists; list++) {
+      final int start = c.listStarts[list];
+      final int end = c.listStarts[list + 1];
+      final int[] members = new int[Math.max(end - start, 4)];
+      int size = 0;
+      for (int i = start; i < end; i++) {
+        final int row = c.listRows[i];
+        // Skip rows removed since the snapshot was taken.
+        if (names[row] != null) {
+          members[size++] = row;
+          rowLists[row] = list;
+        }
+      }
+      listRows[list] = members;
+      listSizes[list] = size;
+    }
+    for (int row = c.coveredRows; row < count; row++) {
+      rowLists[row] = -1;
+      if (names[row] != null) {
+        assign(row);
+      }
+    }
+  }
+
+  // Moves an entry into the list of its closest centroid.
+  private void assign(final int row) {
+    final int list = nearestCentroid(vectors, row * dimension, adopted.centroids, adopted.lists);
+    final int previous = rowLists[row];
+    if (previous == list) {
+      return;
+    }
+    if (previous >= 0) {
+      unlist(row);
+    }
+    if (listSizes[list] == listRows[list].length) {
+      listRows[list] = Arrays.copyOf(listRows[list], listSizes[list] * 2);
+    }
+    listRows[list][listSizes[list]++] = row;
+    rowLists[row] = list;
+  }
+
+  // Takes an entry out of its list.
+  private void unlist(final int row) {
+    final int list = rowLists[row];
+    final int[] members = listRows[list];
+    for (int i = 0; i < listSizes[list]; i++) {
+      if (members[i] == row) {
+        members[i] = members[--listSizes[list]];
+        break;
+      }
+    }
+    rowLists[row] = -1;
+  }
+
+  // Runs k-means on a sample of the snapshot, then assigns every row to its closest centroid.
+  private Clustering cluster(final float[] data, final int rowCount) {
+    final int dim = dimension;
+    final int lists = Math.min(nlist, rowCount);
+    final Random random = new Random(rowCount);
+
+    final int sampleCount = Math.min(rowCount, lists * TRAINING_POINTS_PER_LIST);
+    final int[] sample = new int[sampleCount];
+    for (int i = 0; i < rowCount; i++) {
+      // Reservoir sampling of the training rows.
+      if (i < sampleCount) {
+        sample[i] = i;
+      } else {
+        final int j = random.nextInt(i + 1);
+        if (j < sampleCount) {
+          sample[j] = i;
+        }
+      }
+    }
+
+    final float[] centroids = new float[lists * dim];
+    for (int list = 0; list < lists; list++) {
+      System.arraycopy(data, sample[list] * dim, centroids, list * dim, dim);
+    }
+
+    final int[] assignment = new int[sampleCount];
+    final int[] sizes = new int[lists];
+    for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+      for (int i = 0; i < sampleCount; i++) {
+        assignment[i] = nearestCentroid(data, sample[i] * dim, centroids, lists);
+      }
+      Arrays.fill(centroids, 0);
+      Arrays.fill(sizes, 0);
+      for (int i = 0; i < sampleCount; i++) {
+        final int list = assignment[i];
+        final int base = sample[i] * dim;
+        for (int d = 0; d < dim; d++) {
+          centroids[list * dim + d] += data[base + d];
+        }
+        sizes[list]++;
+      }
+      for (int list = 0; list < lists; list++) {
+        if (sizes[list] == 0) {
+          // Restart empty clusters from a random training point.
+          final int row = sample[random.nextInt(sampleCount)];
+          System.arraycopy(data, row * dim, centroids, list * dim, dim);
+          continue;
+        }
+        final float scale = 1.0f / sizes[list];
+        for (int d = 0; d < dim; d++) {
+          centroids[list * dim + d] *= scale;
+        }
+      }
+    }
+
+    final int[] rowLists = new int[rowCount];
+    final int[] listStarts = new int[lists + 1];
+    for (int row = 0; row < rowCount; row++) {
+      rowLists[row] = nearestCentroid(data, row * dim, centroids, lists);
+      listStarts[rowLists[row] + 1]++;
+    }
+    for (int list = 0; list < lists; list++) {
+      listStarts[list + 1] += listStarts[list];
+    }
+    final int[] fill = Arrays.copyOf(listStarts, lists);
+    final int[] listRows = new int[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      listRows[fill[rowLists[row]]++] = row;
+    }
+    return new Clustering(lists, centroids, listStarts, listRows, rowCount);
+  }
+
+  private int nearestCentroid(
+      final float[] data, final int offset, final float[] centroids, final int lists) {
+    int best = 0;
+    float bestDistance = Float.MAX_VALUE;
+    for (int list = 0; list < lists; list++) {
+      float sum = 0;
+      final int base = list * dimension;
+      for (int d = 0; d < dimension && sum < bestDistance; d++) {
+        final float diff = data[offset + d] - centroids[base + d];
+        sum += diff * diff;
+      }
+      if (sum < bestDistance) {
+        bestDistance = sum;
+        best = list;
+      }
+    }
+    return best;
+  }
+
+  private float[] prepareQuery(final float[] embedding) {
+    if (distanceMode != DistanceMode.COSINE) {
+      return embedding;
+    }
+    System.arraycopy(embedding, 0, query, 0, dimension);
+    VectorMath.normalize(query, 0, dimension);
+    return query;
+  }
+
+  private void ensureCapacity(final int required) {
+    if (required <= names.length) {
+      return;
+    }
+    final int capacity = Math.max(required, names.length * 2);
+    vectors = Arrays.copyOf(vectors, capacity * dimension);
+    names = Arrays.copyOf(names, capacity);
+    rowLists = Arrays.copyOf(rowLists, capacity);
+  }
+}
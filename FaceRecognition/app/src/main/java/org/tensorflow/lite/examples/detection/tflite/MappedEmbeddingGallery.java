@@ -0,0 +1,447 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Embedding gallery persisted in a memory-mapped file.
+ *
+ * The file is mapped the same way the model is, so opening a gallery of any size costs one
+ * {@code mmap} and lookups read the vectors straight from the page cache: nothing is parsed or
+ * copied to the heap up front. New identities are appended and the entry count in the header is
+ * updated last, so a gallery interrupted mid-write still opens with its previous content.
+ *
+ * File layout, little endian:
+ *
+ * <pre>
+ *   header   HEADER_BYTES: magic, version, dimension, encoding, distance mode, capacity, count
+ *   id table capacity * NAME_BYTES: UTF-8 length (short) and bytes of every identity
+ *   vectors  capacity * vectorBytes: dimension floats, or a float scale and dimension int8 codes
+ * </pre>
+ *
+ * When the capacity is exhausted the file is rewritten with twice the capacity.
+ *
+ * Lookups allocate nothing: the views of the mapping are made once per mapping and identities
+ * are decoded once, the first time a row is returned.
+ */
+public class MappedEmbeddingGallery implements EmbeddingIndex {
+
+  /** How vectors are packed in the file. */
+  public enum Encoding {
+    /** Exact fp32 vectors. */
+    FLOAT32,
+    /** int8 codes with one scale per vector, 4x smaller, distances are approximate. */
+    INT8
+  }
+
+  private static final int MAGIC = 0x4c414746; // "FGAL"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 64;
+  private static final int NAME_BYTES = 128;
+  private static final int INITIAL_CAPACITY = 256;
+
+  private static final int OFFSET_MAGIC = 0;
+  private static final int OFFSET_VERSION = 4;
+  private static final int OFFSET_DIMENSION = 8;
+  private static final int OFFSET_ENCODING = 12;
+  private static final int OFFSET_DISTANCE_MODE = 16;
+  private static final int OFFSET_CAPACITY = 20;
+  private static final int OFFSET_COUNT = 24;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final int dimension;
+  private final DistanceMode distanceMode;
+  private final Encoding encoding;
+  private final int vectorBytes;
+
+  private RandomAccessFile raf;
+  private MappedByteBuffer buffer;
+  // Views of the vector region of buffer, made once per mapping so that lookups allocate nothing.
+  private FloatBuffer vectorFloats;
+  private ByteBuffer vectorView;
+  // Decoded identity of every row, filled as rows are looked up.
+  private String[] nameCache;
+  private int capacity;
+  private int count;
+  // Identity to row, built on the first put() so that opening stays free of parsing.
+  private HashMap<String, Integer> rows;
+
+  // Per-query scratch.
+  private final float[] query;
+  private final float[] rowVector;
+  private final byte[] rowCodes;
+
+  private MappedEmbeddingGallery(
+      final File file,
+      final int dimension,
+      final DistanceMode distanceMode,
+      final Encoding encoding) {
+    this.file = file;
+    this.dimension = dimension;
+    this.distanceMode = distanceMode;
+    this.encoding = encoding;
+    this.vectorBytes = encoding == Encoding.FLOAT32 ? dimension * 4 : 4 + ((dimension + 3) & ~3);
+    this.query = new float[dimension];
+    this.rowVector = new float[dimension];
+    this.rowCodes = new byte[dimension];
+  }
+
+  /**
+   * Opens the gallery stored in {@code file}, creating an empty one if the file does not exist.
+   *
+   * @throws IOException if the file cannot be mapped or holds a gallery of another layout.
+   */
+  public static MappedEmbeddingGallery open(
+      final File file,
+      final int dimension,
+      final DistanceMode distanceMode,
+      final Encoding encoding)
+      throws IOException {
+    final MappedEmbeddingGallery g =
+        new MappedEmbeddingGallery(file, dimension, distanceMode, encoding);
+    if (!file.exists() || file.length() == 0) {
+      g.create(file, INITIAL_CAPACITY);
+    }
+    g.map();
+    return g;
+  }
+
+  @Override
+  public int dimension() {
+    return dimension;
+  }
+
+  @Override
+  public DistanceMode getDistanceMode() {
+    return distanceMode;
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public String getName(final int row) {
+    if (nameCache[row] != null) {
+      return nameCache[row];
+    }
+    final int offset = HEADER_BYTES + row * NAME_BYTES;
+    final int length = buffer.getShort(offset);
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(offset + 2 + i);
+    }
+    nameCache[row] = new String(bytes, UTF_8);
+    return nameCache[row];
+  }
+
+  @Override
+  public int put(final String name, final float[] embedding) {
+    final byte[] nameBytes = name.getBytes(UTF_8);
+    if (nameBytes.length > NAME_BYTES - 2) {
+      throw new IllegalArgumentException("Identity name too long: " + name);
+    }
+    ensureRows();
+
+    Integer row = rows.get(name);
+    final boolean append = row == null;
+    if (append) {
+      if (count == capacity) {
+        grow();
+      }
+      row = count;
+      final int offset = HEADER_BYTES + row * NAME_BYTES;
+      buffer.putShort(offset, (short) nameBytes.length);
+      for (int i = 0; i < nameBytes.length; i++) {
+        buffer.put(offset + 2 + i, nameBytes[i]);
+      }
+    }
+
+    System.arraycopy(embedding, 0, rowVector, 0, dimension);
+    if (distanceMode == DistanceMode.COSINE) {
+      VectorMath.normalize(rowVector, 0, dimension);
+    }
+    writeVector(row, rowVector);
+
+    if (append) {
+      // Publish the record only once it is fully written.
+      count++;
+      buffer.putInt(OFFSET_COUNT, count);
+      rows.put(name, row);
+      nameCache[row] = name;
+    }
+    return row;
+  }
+
+  @Override
+  public boolean get(final String name, final float[] out) {
+    ensureRows();
+    final Integer row = rows.get(name);
+    if (row == null) {
+      return false;
+    }
+    final int offset = vectorsOffset(capacity) + row * vectorBytes;
+    if (encoding == Encoding.FLOAT32) {
+      for (int i = 0; i < dimension; i++) {
+        out[i] = buffer.getFloat(offset + 4 * i);
+      }
+      return true;
+    }
+    final float scale = buffer.getFloat(offset);
+    for (int i = 0; i < dimension; i++) {
+      out[i] = scale * buffer.get(offset + 4 + i);
+    }
+    return true;
+  }
+
+  /**
+   * Removes every identity not in names, last row first: the row moved into a freed one has been
+   * kept already.
+   */
+  @Override
+  public void retainAll(final Set<String> names) {
+    for (int row = count - 1; row >= 0; row--) {
+      final String name = getName(row);
+      if (!names.contains(name)) {
+        remove(name);
+      }
+    }
+  }
+
+  /**
+   * Removes an identity by copying the last record into its slot. The count is lowered last, so
+   * an interrupted removal leaves the last identity stored twice rather than losing it.
+   */
+  @Override
+  public boolean remove(final String name) {
+    ensureRows();
+    final Integer row = rows.remove(name);
+    if (row == null) {
+      return false;
+    }
+    final int last = count - 1;
+    if (row != last) {
+      final ByteBuffer source = buffer.duplicate();
+      final ByteBuffer target = buffer.duplicate();
+      source.position(HEADER_BYTES + last * NAME_BYTES).limit(HEADER_BYTES + count * NAME_BYTES);
+      target.position(HEADER_BYTES + row * NAME_BYTES);
+      target.put(source);
+      final int vectorsOffset = vectorsOffset(capacity);
+      source.limit(vectorsOffset + count * vectorBytes);
+      source.position(vectorsOffset + last * vectorBytes);
+      target.position(vectorsOffset + row * vectorBytes);
+      target.put(source);
+      nameCache[row] = nameCache[last];
+      rows.put(getName(row), row);
+    }
+    nameCache[last] = null;
+    count = last;
+    buffer.putInt(OFFSET_COUNT, count);
+    return true;
+  }
+
+  @Override
+  public void search(final float[] embedding, final NearestNeighbors result) {
+    System.arraycopy(embedding, 0, query, 0, dimension);
+    if (distanceMode == DistanceMode.COSINE) {
+      VectorMath.normalize(query, 0, dimension);
+    }
+
+    result.clear();
+    final int vectorsOffset = vectorsOffset(capacity);
+    float threshold = Float.MAX_VALUE;
+    if (encoding == Encoding.FLOAT32) {
+      final FloatBuffer floats = vectorFloats;
+      floats.rewind();
+      for (int row = 0; row < count; row++) {
+        floats.get(rowVector);
+        final float distance =
+            VectorMath.squaredDistance(query, rowVector, 0, dimension, threshold);
+        if (distance < threshold && result.offer(row, distance)) {
+          threshold = result.threshold();
+        }
+      }
+    } else {
+      final ByteBuffer view = vectorView;
+      for (int row = 0; row < count; row++) {
+        final int offset = vectorsOffset + row * vectorBytes;
+        final float scale = view.getFloat(offset);
+        view.position(offset + 4);
+        view.get(rowCodes);
+        float sum = 0;
+        for (int i = 0; i < dimension && sum < threshold; i++) {
+          final float diff = query[i] - scale * rowCodes[i];
+          sum += diff * diff;
+        }
+        if (sum < threshold && result.offer(row, sum)) {
+          threshold = result.threshold();
+        }
+      }
+    }
+    result.sort();
+  }
+
+  /** Flushes the mapped pages to storage and releases the file. */
+  @Override
+  public void close() {
+    if (raf == null) {
+      return;
+    }
+    buffer.force();
+    try {
+      raf.close();
+    } catch (final IOException e) {
+      // Nothing left to release.
+    }
+    raf = null;
+  }
+
+  // Builds the identity to row map, which open() leaves out.
+  private void ensureRows() {
+    if (rows != null) {
+      return;
+    }
+    rows = new HashMap<>();
+    for (int row = 0; row < count; row++) {
+      rows.put(getName(row), row);
+    }
+  }
+
+  private void writeVector(final int row, final float[] vector) {
+    final int offset = vectorsOffset(capacity) + row * vectorBytes;
+    if (encoding == Encoding.FLOAT32) {
+      for (int i = 0; i < dimension; i++) {
+        buffer.putFloat(offset + 4 * i, vector[i]);
+      }
+      return;
+    }
+    float max = 0;
+    for (int i = 0; i < dimension; i++) {
+      max = Math.max(max, Math.abs(vector[i]));
+    }
+    final float scale = max / 127.0f;
+    buffer.putFloat(offset, scale);
+    for (int i = 0; i < dimension; i++) {
+      final int code = scale == 0 ? 0 : Math.round(vector[i] / scale);
+      buffer.put(offset + 4 + i, (byte) Math.max(-127, Math.min(127, code)));
+    }
+  }
+
+  // Writes an empty gallery with the given capacity.
+  private void create(final File target, final int newCapacity) throws IOException {
+    final RandomAccessFile out = new RandomAccessFile(target, "rw");
+    try {
+      out.setLength(fileBytes(newCapacity));
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(OFFSET_MAGIC, MAGIC);
+      header.putInt(OFFSET_VERSION, VERSION);
+      header.putInt(OFFSET_DIMENSION, dimension);
+      header.putInt(OFFSET_ENCODING, encoding.ordinal());
+      header.putInt(OFFSET_DISTANCE_MODE, distanceMode.ordinal());
+      header.putInt(OFFSET_CAPACITY, newCapacity);
+      header.putInt(OFFSET_COUNT, 0);
+      out.getChannel().write(header, 0);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void map() throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    final FileChannel channel = raf.getChannel();
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (buffer.getInt(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_VERSION) != VERSION) {
+      close();
+      throw new IOException("Not a version " + VERSION + " gallery file: " + file);
+    }
+    if (buffer.getInt(OFFSET_DIMENSION) != dimension
+        || buffer.getInt(OFFSET_ENCODING) != encoding.ordinal()
+        || buffer.getInt(OFFSET_DISTANCE_MODE) != distanceMode.ordinal()) {
+      close();
+      throw new IOException("Gallery file " + file + " was written with other settings");
+    }
+    capacity = buffer.getInt(OFFSET_CAPACITY);
+    count = buffer.getInt(OFFSET_COUNT);
+    if (channel.size() < fileBytes(capacity) || count > capacity) {
+      close();
+      throw new IOException("Truncated gallery file: " + file);
+    }
+
+    final ByteBuffer vectors = buffer.duplicate();
+    vectors.position(vectorsOffset(capacity));
+    vectorFloats = vectors.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    vectorView = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    nameCache = nameCache == null ? new String[capacity] : Arrays.copyOf(nameCache, capacity);
+  }
+
+  // Rewrites the gallery with twice the capacity and maps the new file.
+  private void grow() {
+    final int newCapacity = capacity * 2;
+    final File tmp = new File(file.getPath() + ".tmp");
+    try {
+      create(tmp, newCapacity);
+      final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+      try {
+        final FileChannel channel = out.getChannel();
+        final ByteBuffer names = buffer.duplicate();
+        names.position(HEADER_BYTES).limit(HEADER_BYTES + count * NAME_BYTES);
+        channel.write(names, HEADER_BYTES);
+        final ByteBuffer vectors = buffer.duplicate();
+        final int from = vectorsOffset(capacity);
+        vectors.position(from).limit(from + count * vectorBytes);
+        channel.write(vectors, vectorsOffset(newCapacity));
+        final ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, count);
+        channel.write(header, OFFSET_COUNT);
+        channel.force(true);
+      } finally {
+        out.close();
+      }
+      close();
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not replace " + file);
+      }
+      map();
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int vectorsOffset(final int withCapacity) {
+    return HEADER_BYTES + withCapacity * NAME_BYTES;
+  }
+
+  private long fileBytes(final int withCapacity) {
+    return vectorsOffset(withCapacity) + (long) withCapacity * vectorBytes;
+  }
+}
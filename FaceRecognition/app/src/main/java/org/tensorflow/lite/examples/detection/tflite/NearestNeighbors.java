@@ -0,0 +1,136 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Bounded collector for the k closest gallery entries of a query.
+ *
+ * Candidates are kept in a max-heap on distance backed by two primitive arrays, so offering a
+ * candidate never allocates. Call {@link #sort()} once the search is done to read the results in
+ * ascending distance order; {@link #clear()} makes the instance reusable for the next query.
+ */
+public class NearestNeighbors {
+
+  private final int[] ids;
+  private final float[] distances;
+  private int size;
+  private boolean sorted;
+
+  public NearestNeighbors(final int k) {
+    if (k < 1) {
+      throw new IllegalArgumentException("k must be positive: " + k);
+    }
+    ids = new int[k];
+    distances = new float[k];
+  }
+
+  public int capacity() {
+    return ids.length;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    size = 0;
+    sorted = false;
+  }
+
+  /**
+   * Returns the distance a candidate has to beat to be accepted: the current k-th best distance
+   * once the collector is full, {@link Float#MAX_VALUE} before that.
+   */
+  public float threshold() {
+    return size < ids.length ? Float.MAX_VALUE : distances[0];
+  }
+
+  /**
+   * Offers a candidate.
+   *
+   * @return true if the candidate is now among the k best.
+   */
+  public boolean offer(final int id, final float distance) {
+    if (size < ids.length) {
+      // Sift up from the new leaf.
+      int child = size++;
+      while (child > 0) {
+        final int parent = (child - 1) >> 1;
+        if (distances[parent] >= distance) {
+          break;
+        }
+        ids[child] = ids[parent];
+        distances[child] = distances[parent];
+        child = parent;
+      }
+      ids[child] = id;
+      distances[child] = distance;
+      return true;
+    }
+    if (distance >= distances[0]) {
+      return false;
+    }
+    siftDown(id, distance, size);
+    return true;
+  }
+
+  /** Orders the collected entries by ascending distance. No more offers are accepted after this. */
+  public void sort() {
+    if (sorted) {
+      return;
+    }
+    for (int end = size - 1; end > 0; end--) {
+      final int id = ids[end];
+      final float distance = distances[end];
+      ids[end] = ids[0];
+      distances[end] = distances[0];
+      siftDown(id, distance, end);
+    }
+    sorted = true;
+  }
+
+  /** Id of the i-th entry; ordered by distance only after {@link #sort()}. */
+  public int id(final int i) {
+    return ids[i];
+  }
+
+  /** Distance of the i-th entry; ordered only after {@link #sort()}. */
+  public float distance(final int i) {
+    return distances[i];
+  }
+
+  // Places (id, distance) at the root of the heap [0, end) and restores the heap property.
+  private void siftDown(final int id, final float distance, final int end) {
+    int parent = 0;
+    while (true) {
+      int child = 2 * parent + 1;
+      if (child >= end) {
+        break;
+      }
+      if (child + 1 < end && distances[child + 1] > distances[child]) {
+        child++;
+      }
+      if (distances[child] <= distance) {
+        break;
+      }
+      ids[parent] = ids[child];
+      distances[parent] = distances[child];
+      parent = child;
+    }
+    ids[parent] = id;
+    distances[parent] = distance;
+  }
+}
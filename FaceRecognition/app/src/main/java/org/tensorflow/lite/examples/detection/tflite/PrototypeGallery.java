@@ -0,0 +1,491 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Keeps several embeddings per identity, for example for different poses and lighting, on top of
+ * any other {@link EmbeddingIndex}.
+ *
+ * Every {@link #put} adds a sample instead of replacing the previous one. A sample closer than
+ * {@code mergeDistance} to one of the identity's prototypes is averaged into it; otherwise it
+ * becomes a new prototype, and once an identity has more than {@code maxPrototypes} of them its
+ * two closest prototypes are merged. The gallery therefore grows by at most {@code maxPrototypes}
+ * entries per identity however many samples are registered.
+ *
+ * Prototypes are stored in the wrapped index under the key {@code name + KEY_SEPARATOR + slot}.
+ * Lookups return each identity once, with the distance of its closest prototype. The ids they
+ * return are ids of the wrapped index, and {@link #getName} maps them back to the identity.
+ *
+ * Lookups only read the keys of the prototypes they find, so a persistent index opens without
+ * being scanned. The prototypes of every identity are gathered from the index the first time the
+ * gallery is changed. The number of samples averaged into every prototype can be kept in a
+ * weights file next to the index: changes are appended to it, and it is rewritten with only the
+ * current weights when the identities are gathered.
+ */
+public class PrototypeGallery implements EmbeddingIndex {
+  private static final Logger LOGGER = new Logger();
+
+  public static final int DEFAULT_MAX_PROTOTYPES = 5;
+  public static final float DEFAULT_MERGE_DISTANCE = 0.5f;
+
+  // Separates the identity from the prototype slot in the keys of the wrapped index.
+  private static final char KEY_SEPARATOR = '\u001f';
+
+  /** Prototypes of one identity. */
+  private static final class Identity {
+    final String[] keys;
+    // Number of samples averaged into every prototype.
+    final int[] weights;
+    int count;
+    int nextSlot;
+
+    Identity(final int maxPrototypes) {
+      this.keys = new String[maxPrototypes + 1];
+      this.weights = new int[maxPrototypes + 1];
+    }
+  }
+
+  private final EmbeddingIndex index;
+  private final int dimension;
+  private final int maxPrototypes;
+  private final float mergeThreshold;
+  private final File weightsFile;
+  // Gathered from the index on the first change, so that opening stays free of parsing.
+  private HashMap<String, Identity> identities;
+  // Appends weight changes to weightsFile, null when they are not persisted.
+  private DataOutputStream weightsLog;
+
+  // Per-operation scratch.
+  private final float[] sample;
+  private final float[] prototype;
+  // prototypes: array of shape [(maxPrototypes + 1) * dimension]
+  private final float[] prototypes;
+  private NearestNeighbors candidates;
+  private String[] accepted = new String[0];
+
+  public PrototypeGallery(final EmbeddingIndex index) {
+    this(index, DEFAULT_MAX_PROTOTYPES, DEFAULT_MERGE_DISTANCE);
+  }
+
+  public PrototypeGallery(
+      final EmbeddingIndex index, final int maxPrototypes, final float mergeDistance) {
+    this(index, maxPrototypes, mergeDistance, null);
+  }
+
+  /**
+   * Wraps {@code index}, picking up the prototypes it already holds if it is persistent. Entries
+   * that were not written by a PrototypeGallery become single-prototype identities, prototypes
+   * beyond {@code maxPrototypes} are dropped.
+   *
+   * @param maxPrototypes Embeddings kept per identity at most.
+   * @param mergeDistance L2 distance under which a sample is averaged into a prototype.
+   * @param weightsFile Keeps the weight of every prototype across restarts, null to start all of
+   *     them from 1.
+   */
+  public PrototypeGallery(
+      final EmbeddingIndex index,
+      final int maxPrototypes,
+      final float mergeDistance,
+      final File weightsFile) {
+    if (maxPrototypes < 1) {
+      throw new IllegalArgumentException("maxPrototypes must be positive: " + maxPrototypes);
+    }
+    this.index = index;
+    this.dimension = index.dimension();
+    this.maxPrototypes = maxPrototypes;
+    this.mergeThreshold = mergeDistance * mergeDistance;
+    this.sample = new float[dimension];
+    this.prototype = new float[dimension];
+    this.prototypes = new float[(maxPrototypes + 1) * dimension];
+    this.weightsFile = weightsFile;
+  }
+
+  @Override
+  public int dimension() {
+    return dimension;
+  }
+
+  @Override
+  public DistanceMode getDistanceMode() {
+    return index.getDistanceMode();
+  }
+
+  /** Number of stored prototypes, all identities included. */
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public String getName(final int id) {
+    final String key = index.getName(id);
+    return key == null ? null : key.substring(0, nameLength(key));
+  }
+
+  /**
+   * Adds a sample of an identity, merging it into the closest prototype or, when the cap is
+   * exceeded, merging the two closest prototypes.
+   *
+   * @return the id, in the wrapped index, of the prototype the sample ended up in.
+   */
+  @Override
+  public int put(final String name, final float[] embedding) {
+    System.arraycopy(embedding, 0, sample, 0, dimension);
+    if (index.getDistanceMode() == DistanceMode.COSINE) {
+      VectorMath.normalize(sample, 0, dimension);
+    }
+
+    ensureIdentities();
+    Identity identity = identities.get(name);
+    if (identity == null) {
+      identity = new Identity(maxPrototypes);
+      identities.put(name, identity);
+    }
+    final int count = identity.count;
+    loadPrototypes(identity);
+
+    int closest = -1;
+    float closestDistance = mergeThreshold;
+    for (int i = 0; i < count; i++) {
+      final float distance =
+          VectorMath.squaredDistance(sample, prototypes, i * dimension, dimension, closestDistance);
+      if (distance < closestDistance) {
+        closest = i;
+        closestDistance = distance;
+      }
+    }
+    if (closest >= 0) {
+      merge(identity, closest, sample, 0, 1);
+      return writePrototype(identity, closest);
+    }
+
+    final String key = name + KEY_SEPARATOR + identity.nextSlot++;
+    identity.keys[count] = key;
+    identity.weights[count] = 1;
+    identity.count++;
+    System.arraycopy(sample, 0, prototypes, count * dimension, dimension);
+    final int id = index.put(key, sample);
+    logWeight(key, 1);
+    if (identity.count <= maxPrototypes) {
+      return id;
+    }
+    return compact(identity);
+  }
+
+  @Override
+  public boolean get(final String name, final float[] out) {
+    ensureIdentities();
+    final Identity identity = identities.get(name);
+    if (identity == null) {
+      return false;
+    }
+    // The prototype that absorbed the most samples stands for the identity.
+    int best = 0;
+    for (int i = 1; i < identity.count; i++) {
+      if (identity.weights[i] > identity.weights[best]) {
+        best = i;
+      }
+    }
+    return index.get(identity.keys[best], out);
+  }
+
+  @Override
+  public void retainAll(final Set<String> names) {
+    ensureIdentities();
+    for (final String name : new ArrayList<>(identities.keySet())) {
+      if (!names.contains(name)) {
+        remove(name);
+      }
+    }
+  }
+
+  /** Removes every prototype of an identity. */
+  @Override
+  public boolean remove(final String name) {
+    ensureIdentities();
+    final Identity identity = identities.remove(name);
+    if (identity == null) {
+      return false;
+    }
+    for (int i = 0; i < identity.count; i++) {
+      index.remove(identity.keys[i]);
+      logWeight(identity.keys[i], 0);
+    }
+    return true;
+  }
+
+  /**
+   * Collects the identities closest to the embedding into {@code result}, each with the distance
+   * of its closest prototype.
+   */
+  @Override
+  public void search(final float[] embedding, final NearestNeighbors result) {
+    final int k = result.capacity();
+    // Enough prototypes to hold k distinct identities.
+    final int depth = k * maxPrototypes;
+    if (candidates == null || candidates.capacity() != depth) {
+      candidates = new NearestNeighbors(depth);
+      accepted = new String[k];
+    }
+    index.search(embedding, candidates);
+
+    result.clear();
+    int found = 0;
+    for (int i = 0; i < candidates.size() && found < k; i++) {
+      final String key = index.getName(candidates.id(i));
+      if (key == null || containsIdentity(accepted, found, key)) {
+        continue;
+      }
+      accepted[found++] = key;
+      result.offer(candidates.id(i), candidates.distance(i));
+    }
+    Arrays.fill(accepted, 0, found, null);
+    result.sort();
+  }
+
+  @Override
+  public void close() {
+    closeWeightsLog();
+    index.close();
+  }
+
+  // Merges the two closest prototypes of an identity that went over the cap.
+  private int compact(final Identity identity) {
+    float closestDistance = Float.MAX_VALUE;
+    int keep = 0;
+    int drop = 1;
+    for (int i = 0; i < identity.count; i++) {
+      for (int j = i + 1; j < identity.count; j++) {
+        final float distance =
+            VectorMath.squaredDistance(prototypes, i * dimension, j * dimension, dimension);
+        if (distance < closestDistance) {
+          closestDistance = distance;
+          keep = i;
+          drop = j;
+        }
+      }
+    }
+
+    merge(identity, keep, prototypes, drop * dimension, identity.weights[drop]);
+    index.remove(identity.keys[drop]);
+    logWeight(identity.keys[drop], 0);
+    final int id = writePrototype(identity, keep);
+    final int last = --identity.count;
+    identity.keys[drop] = identity.keys[last];
+    identity.weights[drop] = identity.weights[last];
+    identity.keys[last] = null;
+    return id;
+  }
+
+  // Stores row i of prototypes and its weight back.
+  private int writePrototype(final Identity identity, final int i) {
+    System.arraycopy(prototypes, i * dimension, prototype, 0, dimension);
+    final int id = index.put(identity.keys[i], prototype);
+    logWeight(identity.keys[i], identity.weights[i]);
+    return id;
+  }
+
+  // Averages weight samples at source[offset] into row i of prototypes.
+  private void merge(
+      final Identity identity,
+      final int i,
+      final float[] source,
+      final int offset,
+      final int weight) {
+    final int base = i * dimension;
+    final float total = identity.weights[i] + weight;
+    final float keepShare = identity.weights[i] / total;
+    final float addShare = weight / total;
+    for (int d = 0; d < dimension; d++) {
+      prototypes[base + d] = prototypes[base + d] * keepShare + source[offset + d] * addShare;
+    }
+    identity.weights[i] += weight;
+  }
+
+  // Reads the prototypes of an identity into the first rows of prototypes.
+  private void loadPrototypes(final Identity identity) {
+    for (int i = 0; i < identity.count; i++) {
+      if (!index.get(identity.keys[i], prototype)) {
+        throw new IllegalStateException("Prototype " + identity.keys[i] + " is missing");
+      }
+      System.arraycopy(prototype, 0, prototypes, i * dimension, dimension);
+    }
+  }
+
+  // Gathers the prototypes of every identity from the index, with their weights if persisted.
+  private void ensureIdentities() {
+    if (identities != null) {
+      return;
+    }
+    identities = new HashMap<>();
+    final HashMap<String, Integer> weights = readWeights();
+    final ArrayList<String> surplus = new ArrayList<>();
+    for (int id = 0; id < index.size(); id++) {
+      final String key = index.getName(id);
+      if (key == null) {
+        continue;
+      }
+      final int separator = key.lastIndexOf(KEY_SEPARATOR);
+      final String name = separator < 0 ? key : key.substring(0, separator);
+      Identity identity = identities.get(name);
+      if (identity == null) {
+        identity = new Identity(maxPrototypes);
+        identities.put(name, identity);
+      }
+      if (identity.count == maxPrototypes) {
+        surplus.add(key);
+        continue;
+      }
+      final Integer weight = weights.get(key);
+      identity.keys[identity.count] = key;
+      identity.weights[identity.count] = weight == null ? 1 : weight;
+      identity.count++;
+      if (separator >= 0) {
+        final int slot = Integer.parseInt(key.substring(separator + 1));
+        identity.nextSlot = Math.max(identity.nextSlot, slot + 1);
+      }
+    }
+    for (final String key : surplus) {
+      index.remove(key);
+    }
+    rewriteWeights();
+  }
+
+  // Replays the weights file, the last record of every key wins and a weight of 0 removes it.
+  private HashMap<String, Integer> readWeights() {
+    final HashMap<String, Integer> weights = new HashMap<>();
+    if (weightsFile == null || !weightsFile.exists()) {
+      return weights;
+    }
+    try {
+      final InputStream stream = new FileInputStream(weightsFile);
+      try {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        while (true) {
+          final String key;
+          final int weight;
+          try {
+            key = in.readUTF();
+            weight = in.readInt();
+          } catch (final EOFException e) {
+            // End of the file, or a record cut short by the process dying mid-write.
+            break;
+          }
+          if (weight > 0) {
+            weights.put(key, weight);
+          } else {
+            weights.remove(key);
+          }
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (final IOException e) {
+      LOGGER.w("Prototype weights unreadable, starting them from 1: " + e);
+    }
+    return weights;
+  }
+
+  // Rewrites the weights file with the current weights only and keeps it open for appending.
+  private void rewriteWeights() {
+    if (weightsFile == null) {
+      return;
+    }
+    final File tmp = new File(weightsFile.getPath() + ".tmp");
+    try {
+      final DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        for (final Identity identity : identities.values()) {
+          for (int i = 0; i < identity.count; i++) {
+            out.writeUTF(identity.keys[i]);
+            out.writeInt(identity.weights[i]);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(weightsFile)) {
+        throw new IOException("Could not replace " + weightsFile);
+      }
+      weightsLog =
+          new DataOutputStream(
+              new BufferedOutputStream(new FileOutputStream(weightsFile, true)));
+    } catch (final IOException e) {
+      LOGGER.w("Prototype weights will not be kept: " + e);
+      closeWeightsLog();
+    }
+  }
+
+  private void logWeight(final String key, final int weight) {
+    if (weightsLog == null) {
+      return;
+    }
+    try {
+      weightsLog.writeUTF(key);
+      weightsLog.writeInt(weight);
+      weightsLog.flush();
+    } catch (final IOException e) {
+      LOGGER.w("Prototype weights will not be kept: " + e);
+      closeWeightsLog();
+    }
+  }
+
+  private void closeWeightsLog() {
+    if (weightsLog == null) {
+      return;
+    }
+    try {
+      weightsLog.close();
+    } catch (final IOException e) {
+      // Nothing left to release.
+    }
+    weightsLog = null;
+  }
+
+  // Length of the identity name at the start of a key.
+  private static int nameLength(final String key) {
+    final int separator = key.lastIndexOf(KEY_SEPARATOR);
+    return separator < 0 ? key.length() : separator;
+  }
+
+  private static boolean containsIdentity(
+      final String[] keys, final int count, final String key) {
+    final int length = nameLength(key);
+    for (int i = 0; i < count; i++) {
+      if (nameLength(keys[i]) == length && keys[i].regionMatches(0, key, 0, length)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,355 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Embedding gallery that scans int8 codes and re-ranks the best candidates in full precision.
+ *
+ * Every embedding is stored as {@code dimension} signed bytes plus one float scale, so the
+ * scanned data is 4x smaller than in {@link EmbeddingGallery} and the distance to every row is
+ * estimated with an integer dot product. Only the {@code rerankCandidates} best estimates are
+ * then compared against their fp32 vectors, which are kept either in memory or, to get the full
+ * memory saving, in a file that is only read during re-ranking.
+ *
+ * The re-ranking depth is the recall knob: the search is exact whenever the true neighbours are
+ * among the candidates, which for face embeddings holds with a handful of candidates per result.
+ */
+public class QuantizedEmbeddingGallery implements EmbeddingIndex {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  // Default number of int8 candidates re-ranked in fp32.
+  public static final int DEFAULT_RERANK_CANDIDATES = 8;
+
+  private final int dimension;
+  private final DistanceMode distanceMode;
+  private final int rerankCandidates;
+
+  // codes: array of shape [capacity * dimension], int8 embeddings
+  private byte[] codes;
+  // scales: value of one code step for every row
+  private float[] scales;
+  // codeNorms: sum of the squared codes of every row
+  private int[] codeNorms;
+  private String[] names;
+  private final HashMap<String, Integer> rows = new HashMap<>();
+  private int count;
+
+  // fp32 embeddings, either in memory or in vectorFile
+  private float[] vectors;
+  private final RandomAccessFile vectorFile;
+  private final FileChannel vectorChannel;
+  private final ByteBuffer vectorBuffer;
+  private final FloatBuffer vectorFloats;
+
+  // Per-query scratch.
+  private final float[] query;
+  private final float[] rerankVector;
+  private final int[] queryCodes;
+  private NearestNeighbors candidates;
+
+  /** Creates a gallery that keeps the fp32 vectors used for re-ranking in memory. */
+  public QuantizedEmbeddingGallery(
+      final int dimension, final DistanceMode distanceMode, final int rerankCandidates) {
+    this.dimension = dimension;
+    this.distanceMode = distanceMode;
+    this.rerankCandidates = rerankCandidates;
+    this.vectors = new float[INITIAL_CAPACITY * dimension];
+    this.vectorFile = null;
+    this.vectorChannel = null;
+    this.vectorBuffer = null;
+    this.vectorFloats = null;
+    this.query = new float[dimension];
+    this.rerankVector = new float[dimension];
+    this.queryCodes = new int[dimension];
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Creates a gallery that keeps the fp32 vectors used for re-ranking in {@code file}. Any
+   * previous content of the file is discarded.
+   */
+  public QuantizedEmbeddingGallery(
+      final int dimension,
+      final DistanceMode distanceMode,
+      final int rerankCandidates,
+      final File file)
+      throws IOException {
+    this.dimension = dimension;
+    this.distanceMode = distanceMode;
+    this.rerankCandidates = rerankCandidates;
+    this.vectors = null;
+    this.vectorFile = new RandomAccessFile(file, "rw");
+    this.vectorChannel = vectorFile.getChannel();
+    this.vectorChannel.truncate(0);
+    this.vectorBuffer = ByteBuffer.allocateDirect(dimension * 4);
+    this.vectorBuffer.order(ByteOrder.nativeOrder());
+    this.vectorFloats = vectorBuffer.asFloatBuffer();
+    this.query = new float[dimension];
+    this.rerankVector = new float[dimension];
+    this.queryCodes = new int[dimension];
+    allocate(INITIAL_CAPACITY);
+  }
+
+  @Override
+  public int dimension() {
+    return dimension;
+  }
+
+  @Override
+  public DistanceMode getDistanceMode() {
+    return distanceMode;
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  @Override
+  public String getName(final int row) {
+    return names[row];
+  }
+
+  @Override
+  public int put(final String name, final float[] embedding) {
+    Integer row = rows.get(name);
+    if (row == null) {
+      if (count == names.length) {
+        allocate(count * 2);
+      }
+      row = count++;
+      names[row] = name;
+      rows.put(name, row);
+    }
+
+    System.arraycopy(embedding, 0, query, 0, dimension);
+    if (distanceMode == DistanceMode.COSINE) {
+      VectorMath.normalize(query, 0, dimension);
+    }
+    writeVector(row, query);
+
+    final int base = row * dimension;
+    final float scale = scaleOf(query);
+    int norm = 0;
+    for (int i = 0; i < dimension; i++) {
+      final int code = quantize(query[i], scale);
+      codes[base + i] = (byte) code;
+      norm += code * code;
+    }
+    scales[row] = scale;
+    codeNorms[row] = norm;
+    return row;
+  }
+
+  @Override
+  public boolean get(final String name, final float[] out) {
+    final Integer row = rows.get(name);
+    if (row == null) {
+      return false;
+    }
+    readVector(row, out);
+    return true;
+  }
+
+  /**
+   * Removes every identity not in names, last row first: the row moved into a freed one has been
+   * kept already.
+   */
+  @Override
+  public void retainAll(final Set<String> names) {
+    for (int row = count - 1; row >= 0; row--) {
+      final String name = getName(row);
+      if (!names.contains(name)) {
+        remove(name);
+      }
+    }
+  }
+
+  /** Removes an identity by moving the last row into its place. */
+  @Override
+  public boolean remove(final String name) {
+    final Integer row = rows.remove(name);
+    if (row == null) {
+      return false;
+    }
+    final int last = --count;
+    if (row != last) {
+      System.arraycopy(codes, last * dimension, codes, row * dimension, dimension);
+      scales[row] = scales[last];
+      codeNorms[row] = codeNorms[last];
+      readVector(last, rerankVector);
+      writeVector(row, rerankVector);
+      names[row] = names[last];
+      rows.put(names[row], row);
+    }
+    names[last] = null;
+    return true;
+  }
+
+  @Override
+  public void search(final float[] embedding, final NearestNeighbors result) {
+    System.arraycopy(embedding, 0, query, 0, dimension);
+    if (distanceMode == DistanceMode.COSINE) {
+      VectorMath.normalize(query, 0, dimension);
+    }
+
+    final int dim = dimension;
+    final int[] q = queryCodes;
+    final float queryScale = scaleOf(query);
+    int queryNorm = 0;
+    for (int i = 0; i < dim; i++) {
+      q[i] = quantize(query[i], queryScale);
+      queryNorm += q[i] * q[i];
+    }
+    final float queryTerm = queryScale * queryScale * queryNorm;
+
+    // Estimate |q - x|^2 = |q|^2 + |x|^2 - 2 q.x on the int8 codes.
+    final int depth = Math.max(rerankCandidates, result.capacity());
+    if (candidates == null || candidates.capacity() < depth) {
+      candidates = new NearestNeighbors(depth);
+    }
+    candidates.clear();
+    final byte[] data = codes;
+    float threshold = Float.MAX_VALUE;
+    for (int row = 0, base = 0; row < count; row++, base += dim) {
+      int dot = 0;
+      for (int i = 0; i < dim; i++) {
+        dot += q[i] * data[base + i];
+      }
+      final float scale = scales[row];
+      final float estimate =
+          queryTerm + scale * scale * codeNorms[row] - 2 * queryScale * scale * dot;
+      if (estimate < threshold && candidates.offer(row, estimate)) {
+        threshold = candidates.threshold();
+      }
+    }
+
+    result.clear();
+    for (int i = 0; i < candidates.size(); i++) {
+      final int row = candidates.id(i);
+      final float distance = exactDistance(row, result.threshold());
+      if (distance < result.threshold()) {
+        result.offer(row, distance);
+      }
+    }
+    result.sort();
+  }
+
+  @Override
+  public void close() {
+    if (vectorFile == null) {
+      return;
+    }
+    try {
+      vectorFile.close();
+    } catch (final IOException e) {
+      // Nothing left to release.
+    }
+  }
+
+  // Squared distance between the prepared query and the fp32 vector of a row.
+  private float exactDistance(final int row, final float bound) {
+    if (vectors != null) {
+      return VectorMath.squaredDistance(query, vectors, row * dimension, dimension, bound);
+    }
+    readVector(row, rerankVector);
+    return VectorMath.squaredDistance(query, rerankVector, 0, dimension, bound);
+  }
+
+  private void readVector(final int row, final float[] vector) {
+    if (vectors != null) {
+      System.arraycopy(vectors, row * dimension, vector, 0, dimension);
+      return;
+    }
+    try {
+      vectorBuffer.clear();
+      final long position = (long) row * dimension * 4;
+      while (vectorBuffer.hasRemaining()) {
+        if (vectorChannel.read(vectorBuffer, position + vectorBuffer.position()) < 0) {
+          throw new IOException("Truncated vector file at row " + row);
+        }
+      }
+      vectorFloats.rewind();
+      vectorFloats.get(vector);
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void writeVector(final int row, final float[] vector) {
+    if (vectors != null) {
+      System.arraycopy(vector, 0, vectors, row * dimension, dimension);
+      return;
+    }
+    try {
+      vectorFloats.rewind();
+      vectorFloats.put(vector, 0, dimension);
+      vectorBuffer.clear();
+      final long position = (long) row * dimension * 4;
+      while (vectorBuffer.hasRemaining()) {
+        vectorChannel.write(vectorBuffer, position + vectorBuffer.position());
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void allocate(final int capacity) {
+    final int length = capacity * dimension;
+    if (codes == null) {
+      codes = new byte[length];
+      scales = new float[capacity];
+      codeNorms = new int[capacity];
+      names = new String[capacity];
+      return;
+    }
+    codes = Arrays.copyOf(codes, length);
+    scales = Arrays.copyOf(scales, capacity);
+    codeNorms = Arrays.copyOf(codeNorms, capacity);
+    names = Arrays.copyOf(names, capacity);
+    if (vectors != null) {
+      vectors = Arrays.copyOf(vectors, length);
+    }
+  }
+
+  private float scaleOf(final float[] v) {
+    float max = 0;
+    for (int i = 0; i < dimension; i++) {
+      max = Math.max(max, Math.abs(v[i]));
+    }
+    return max / 127.0f;
+  }
+
+  private static int quantize(final float value, final float scale) {
+    if (scale == 0) {
+      return 0;
+    }
+    final int code = Math.round(value / scale);
+    return code > 127 ? 127 : (code < -127 ? -127 : code);
+  }
+}
@@ -16,26 +16,110 @@ limitations under the License.
 package org.tensorflow.lite.examples.detection.tflite;
 
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
 import java.util.List;
+import java.util.Set;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
 
 /** Generic interface for interacting with different recognition engines. */
 public interface SimilarityClassifier {
 
   void register(String name, Recognition recognition);
 
+  /** Forgets a registered identity. Unknown names are ignored. */
+  void unregister(String name);
+
+  /** Forgets every registered identity not in {@code names}. */
+  void unregisterAllExcept(Set<String> names);
+
+  /**
+   * Makes the calling thread the one recognizing faces and applies the registrations other threads
+   * queued for it. Called when the recognition thread starts and whenever it is idle, so that
+   * registrations show up without waiting for faces to be looked up.
+   */
+  void applyRegistrations();
+
   List<Recognition> recognizeImage(Bitmap bitmap, boolean getExtra);
 
+  /**
+   * Same as {@link #recognizeImage} for several faces at once, embedded in a single inference.
+   * Returns the nearest registered identity of every bitmap, in order.
+   */
+  List<Recognition> recognizeImages(List<Bitmap> bitmaps, boolean getExtra);
+
+  /**
+   * Allocation-free form of {@link #recognizeImages}: writes the nearest identity of every bitmap
+   * into the entry of {@code matches} with the same index and, when {@code embeddings} and its
+   * entry are not null, copies the embedding of the face into that entry. Once the buffers are
+   * sized for the number of faces, nothing is allocated.
+   */
+  void recognize(List<Bitmap> bitmaps, Match[] matches, float[][] embeddings);
+
+  /**
+   * Same as {@link #recognize(List, Match[], float[][])} with the faces sampled straight out of a
+   * camera frame, rotated and scaled on the way, instead of drawn into bitmaps first. Every entry
+   * of {@code faces} maps the square model input, inputSize pixels wide, to frame coordinates.
+   */
+  void recognize(YuvFrame frame, List<Matrix> faces, Match[] matches, float[][] embeddings);
+
+  /**
+   * Embeds the face in the bitmap and returns up to k registered identities closest to it,
+   * nearest first. The distance of every result is the L2 distance to the face.
+   */
+  List<Recognition> recognizeTopK(Bitmap bitmap, int k);
+
+  /** Same as {@link #recognizeTopK} for an embedding that was already computed. */
+  List<Recognition> findNearest(float[] embedding, int k);
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
 
   void close();
 
+  /**
+   * Interpreter settings, like the thread count and backend below, take effect through a rebuild:
+   * new interpreters are built and warmed up on a background thread and then swapped in. Frames
+   * being embedded finish on the previous interpreters, the next ones use the new interpreters.
+   */
   void setNumThreads(int num_threads);
 
+  /** Threads every interpreter runs, as last requested. */
+  int getNumThreads();
+
+  /**
+   * Embeds the faces of a frame on {@code size} interpreters at once, each face on one of them,
+   * every interpreter running {@code numThreads} threads. A size of 1 turns the pool off.
+   */
+  void setInterpreterPool(int size, int numThreads);
+
   void setUseNNAPI(boolean isChecked);
 
+  /** Kernels the model currently runs with. */
+  Backend getBackend();
+
+  /**
+   * Rebuilds the interpreters with the given kernels. If the model cannot run on them, the
+   * current backend is kept.
+   *
+   * @param listener Told the outcome, may be null.
+   */
+  void setBackend(Backend backend, RebuildListener listener);
+
+  /**
+   * Runs the model {@code runs} times on a synthetic face once the pending rebuilds are done, and
+   * blocks until then. Interpreters built by later rebuilds are warmed up as many times before
+   * they are swapped in. Not to be called while faces are being recognized.
+   */
+  void warmUp(int runs);
+
+  /** Outcome of an interpreter rebuild. */
+  interface RebuildListener {
+    /** Called on the rebuild thread with the backend in use once the rebuild is over. */
+    void onRebuilt(Backend backend, boolean success);
+  }
+
   /** An immutable result returned by a Classifier describing what was recognized. */
   public class Recognition {
     /**
@@ -137,4 +221,31 @@ public interface SimilarityClassifier {
       return this.crop;
     }
   }
+
+  /** Reusable result of {@link #recognize}. */
+  public class Match {
+    private int id = -1;
+    private String title;
+    private float distance = Float.MAX_VALUE;
+
+    public void set(final int id, final String title, final float distance) {
+      this.id = id;
+      this.title = title;
+      this.distance = distance;
+    }
+
+    /** Gallery entry of the nearest identity, -1 when nothing is registered. */
+    public int getId() {
+      return id;
+    }
+
+    public String getTitle() {
+      return title;
+    }
+
+    /** L2 distance to the nearest identity, Float.MAX_VALUE when nothing is registered. */
+    public float getDistance() {
+      return distance;
+    }
+  }
 }
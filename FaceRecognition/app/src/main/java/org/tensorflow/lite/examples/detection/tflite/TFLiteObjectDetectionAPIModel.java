@@ -18,9 +18,10 @@ package org.tensorflow.lite.examples.detection.tflite;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.os.Trace;
-import android.util.Pair;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -29,15 +30,28 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFrame;
 
 /**
  * Wrapper for frozen detection models trained using the Tensorflow Object Detection API:
@@ -54,7 +68,7 @@ public class TFLiteObjectDetectionAPIModel
   private static final Logger LOGGER = new Logger();
 
   //private static final int OUTPUT_SIZE = 512;
-  private static final int OUTPUT_SIZE = 192;
+  public static final int OUTPUT_SIZE = 192;
 
   // Only return this many results.
   private static final int NUM_DETECTIONS = 1;
@@ -62,15 +76,29 @@ public class TFLiteObjectDetectionAPIModel
   // Float model
   private static final float IMAGE_MEAN = 128.0f;
   private static final float IMAGE_STD = 128.0f;
+  // (value - IMAGE_MEAN) / IMAGE_STD for every 8-bit channel value.
+  private static final float[] NORMALIZED_CHANNEL = new float[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      NORMALIZED_CHANNEL[i] = (i - IMAGE_MEAN) / IMAGE_STD;
+    }
+  }
 
   // Number of threads in the java app
   private static final int NUM_THREADS = 4;
+  // Kernels used unless another backend is asked for.
+  public static final Backend DEFAULT_BACKEND = Backend.XNNPACK;
+  // True when the model takes 8-bit input, uint8 or int8.
   private boolean isModelQuantized;
+  // Quantized model input of every 8-bit channel value, for quantized models.
+  private byte[] quantizedChannel;
+  // Real value of every quantized output value, indexed by its bits, for quantized outputs.
+  private float[] dequantizedOutput;
   // Config values.
   private int inputSize;
   // Pre-allocated buffers.
   private Vector<String> labels = new Vector<String>();
-  private int[] intValues;
   // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
   // contains the location of detected boxes
   private float[][][] outputLocations;
@@ -84,19 +112,61 @@ public class TFLiteObjectDetectionAPIModel
   // contains the number of detected boxes
   private float[] numDetections;
 
-  private float[][] embeedings;
+  private final ArrayList<Bitmap> singleBitmap = new ArrayList<>(1);
 
-  private ByteBuffer imgData;
-
-  private Interpreter.Options tfliteOptions;
-  private Interpreter tfLite;
+  private MappedByteBuffer tfliteModel;
+  // Interpreters faces are embedded with, replaced as a whole by rebuilds.
+  private volatile Engines engines;
+  // Swapped out interpreters, closed by the thread running the model once it is done with them.
+  private final ConcurrentLinkedQueue<Engines> retired = new ConcurrentLinkedQueue<>();
+  // Settings of the last requested rebuild, guarded by this.
+  private Backend requestedBackend;
+  private int requestedPoolSize = 1;
+  private int requestedThreads = NUM_THREADS;
+  // Inferences run on every rebuilt interpreter before it is swapped in, guarded by this.
+  private int warmUpRuns = 1;
+  private final ExecutorService rebuildExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+              final Thread thread = new Thread(r, "interpreter-rebuild");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+  // Guarded by this.
+  private boolean closed;
 
 // Face Mask Detector Output
   private float[][] output;
 
-  private HashMap<String, Recognition> registered = new HashMap<>();
+  private EmbeddingIndex gallery;
+  private final NearestNeighbors nearest = new NearestNeighbors(NUM_DETECTIONS);
+
   public void register(String name, Recognition rec) {
-      registered.put(name, rec);
+      final Object extra = rec.getExtra();
+      if (!(extra instanceof float[][])) {
+          LOGGER.w("Recognition for " + name + " carries no embedding, not registering it");
+          return;
+      }
+      gallery.put(name, ((float[][]) extra)[0]);
+  }
+
+  public void unregister(String name) {
+      gallery.remove(name);
+  }
+
+  @Override
+  public void unregisterAllExcept(Set<String> names) {
+      gallery.retainAll(names);
+  }
+
+  @Override
+  public void applyRegistrations() {
+      if (gallery instanceof ConcurrentGallery) {
+          ((ConcurrentGallery) gallery).takeOver();
+      }
   }
 
   private TFLiteObjectDetectionAPIModel() {}
@@ -128,8 +198,114 @@ public class TFLiteObjectDetectionAPIModel
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
+    return create(
+        assetManager, modelFilename, labelFilename, inputSize, isQuantized, DistanceMode.EUCLIDEAN);
+  }
+
+  /**
+   * Initializes a native TensorFlow session for classifying images.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param modelFilename The filepath of the model GraphDef protocol buffer.
+   * @param labelFilename The filepath of label file for classes.
+   * @param inputSize The size of image input
+   * @param isQuantized Boolean representing model is quantized or not
+   * @param distanceMode How faces are compared against the registered ones
+   */
+  public static SimilarityClassifier create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final DistanceMode distanceMode)
+      throws IOException {
+    return create(
+        assetManager,
+        modelFilename,
+        labelFilename,
+        inputSize,
+        isQuantized,
+        new EmbeddingGallery(OUTPUT_SIZE, distanceMode));
+  }
+
+  /**
+   * Initializes a native TensorFlow session for classifying images.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param modelFilename The filepath of the model GraphDef protocol buffer.
+   * @param labelFilename The filepath of label file for classes.
+   * @param inputSize The size of image input
+   * @param isQuantized Boolean representing model is quantized or not. The input and output types
+   *     of the model take precedence, uint8 and int8 tensors are quantized and dequantized with
+   *     their scale and zero point.
+   * @param gallery Where registered faces are stored and looked up, of dimension OUTPUT_SIZE
+   */
+  public static SimilarityClassifier create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final EmbeddingIndex gallery)
+      throws IOException {
+    return create(
+        assetManager, modelFilename, labelFilename, inputSize, isQuantized, gallery,
+        DEFAULT_BACKEND);
+  }
+
+  /**
+   * Initializes a native TensorFlow session for classifying images.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param modelFilename The filepath of the model GraphDef protocol buffer.
+   * @param labelFilename The filepath of label file for classes.
+   * @param inputSize The size of image input
+   * @param isQuantized Boolean representing model is quantized or not. The input and output types
+   *     of the model take precedence, uint8 and int8 tensors are quantized and dequantized with
+   *     their scale and zero point.
+   * @param gallery Where registered faces are stored and looked up, of dimension OUTPUT_SIZE
+   * @param backend Kernels the interpreter is built with
+   */
+  public static SimilarityClassifier create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final EmbeddingIndex gallery,
+      final Backend backend)
+      throws IOException {
+    return create(
+        assetManager, modelFilename, labelFilename, inputSize, isQuantized, gallery, backend, 1,
+        NUM_THREADS);
+  }
+
+  /**
+   * Same as above with the interpreter pool of {@link #setInterpreterPool} built right away, so
+   * that no other interpreter is built and replaced first.
+   *
+   * @param poolSize Interpreters faces are embedded on, 1 for no pool
+   * @param numThreads Threads every interpreter runs
+   */
+  public static SimilarityClassifier create(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final EmbeddingIndex gallery,
+      final Backend backend,
+      final int poolSize,
+      final int numThreads)
+      throws IOException {
+    if (gallery.dimension() != OUTPUT_SIZE) {
+      throw new IllegalArgumentException(
+          "Gallery dimension " + gallery.dimension() + " does not match " + OUTPUT_SIZE);
+    }
 
     final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+    d.gallery = gallery;
 
     String actualFilename = labelFilename.split("file:///android_asset/")[1];
     InputStream labelsInput = assetManager.open(actualFilename);
@@ -143,26 +319,33 @@ public class TFLiteObjectDetectionAPIModel
 
     d.inputSize = inputSize;
 
+    final Interpreter tfLite;
     try {
-      d.tfliteOptions = new Interpreter.Options();
-      d.tfLite = new Interpreter(loadModelFile(assetManager, modelFilename), d.tfliteOptions);
+      d.tfliteModel = loadModelFile(assetManager, modelFilename);
+      d.requestedBackend = backend;
+      d.requestedPoolSize = Math.max(1, poolSize);
+      d.requestedThreads = numThreads;
+      tfLite = d.newInterpreter(backend, numThreads);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
 
-    d.isModelQuantized = isQuantized;
-    // Pre-allocate buffers.
-    int numBytesPerChannel;
-    if (isQuantized) {
-      numBytesPerChannel = 1; // Quantized
-    } else {
-      numBytesPerChannel = 4; // Floating point
+    final Tensor input = tfLite.getInputTensor(0);
+    final Tensor output = tfLite.getOutputTensor(0);
+    d.isModelQuantized = isQuantizedType(input.dataType());
+    if (d.isModelQuantized != isQuantized) {
+      LOGGER.w("%s has a %s input, ignoring isQuantized=%b", modelFilename, input.dataType(),
+          isQuantized);
     }
-    d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
-    d.imgData.order(ByteOrder.nativeOrder());
-    d.intValues = new int[d.inputSize * d.inputSize];
+    if (d.isModelQuantized) {
+      d.quantizedChannel = quantizationTable(input);
+    }
+    if (isQuantizedType(output.dataType())) {
+      d.dequantizedOutput = dequantizationTable(output);
+    }
+    LOGGER.i("Model input %s, output %s", input.dataType(), output.dataType());
 
-    d.tfLite.setNumThreads(NUM_THREADS);
+    d.engines = d.new Engines(backend, d.requestedPoolSize, numThreads, tfLite);
     d.outputLocations = new float[1][NUM_DETECTIONS][4];
     d.outputClasses = new float[1][NUM_DETECTIONS];
     d.outputScores = new float[1][NUM_DETECTIONS];
@@ -170,123 +353,592 @@ public class TFLiteObjectDetectionAPIModel
     return d;
   }
 
-  // looks for the nearest embeeding in the dataset (using L2 norm)
-  // and retrurns the pair <id, distance>
-  private Pair<String, Float> findNearest(float[] emb) {
+  private static boolean isQuantizedType(final DataType type) {
+    switch (type) {
+      case FLOAT32:
+        return false;
+      case UINT8:
+      case INT8:
+        return true;
+      default:
+        throw new IllegalArgumentException("Unsupported model tensor type " + type);
+    }
+  }
+
+  // Maps every 8-bit channel value to the input tensor's quantization of its normalized value.
+  // Inputs without quantization parameters get the channel value as is, shifted for int8.
+  private static byte[] quantizationTable(final Tensor input) {
+    final boolean signed = input.dataType() == DataType.INT8;
+    final int min = signed ? -128 : 0;
+    final int max = signed ? 127 : 255;
+    final float scale = input.quantizationParams().getScale();
+    final int zeroPoint = input.quantizationParams().getZeroPoint();
+
+    final byte[] table = new byte[256];
+    for (int i = 0; i < 256; i++) {
+      int q;
+      if (scale == 0) {
+        q = i + min;
+      } else {
+        q = Math.round(NORMALIZED_CHANNEL[i] / scale) + zeroPoint;
+      }
+      table[i] = (byte) Math.max(min, Math.min(max, q));
+    }
+    return table;
+  }
+
+  // Real value of every quantized output value, indexed by its bits.
+  private static float[] dequantizationTable(final Tensor output) {
+    final boolean signed = output.dataType() == DataType.INT8;
+    float scale = output.quantizationParams().getScale();
+    final int zeroPoint = output.quantizationParams().getZeroPoint();
+    if (scale == 0) {
+      scale = 1;
+    }
+
+    final float[] table = new float[256];
+    for (int bits = 0; bits < 256; bits++) {
+      final int q = signed ? (byte) bits : bits;
+      table[bits] = (q - zeroPoint) * scale;
+    }
+    return table;
+  }
+
+  // Runs the face through the model and returns its embedding, array of shape [1, OUTPUT_SIZE].
+  // The array is overwritten by the next run.
+  private float[][] embed(final Bitmap bitmap) {
+    singleBitmap.add(bitmap);
+    try {
+      return acquireEngines().engine.embed(singleBitmap, 0, 1);
+    } finally {
+      singleBitmap.clear();
+    }
+  }
+
+  // Runs the faces through the model, array of shape [N, OUTPUT_SIZE]. The array is overwritten
+  // by the next run.
+  private float[][] embed(final List<Bitmap> bitmaps) {
+    return acquireEngines().embed(bitmaps);
+  }
+
+  // Same as embed(List<Bitmap>) for faces sampled straight out of a camera frame. faces holds,
+  // for every face, the transform from model input to frame coordinates.
+  private float[][] embed(final YuvFrame frame, final List<Matrix> faces) {
+    return acquireEngines().embed(frame, faces);
+  }
+
+  // Engines for the next run. Engines swapped out since the previous run are no longer in use
+  // and are released here.
+  private Engines acquireEngines() {
+    Engines old;
+    while ((old = retired.poll()) != null) {
+      old.close();
+    }
+    return engines;
+  }
+
+  /** Interpreters built with one set of settings, swapped in and out as a whole. */
+  private final class Engines {
+    final Backend backend;
+    final int poolSize;
+    final int numThreads;
+    // Runs single faces, and the whole batch without a pool.
+    final Engine engine;
+    // Interpreter pool, engine followed by the other interpreters. Null for a pool size of 1.
+    private final List<Engine> pool;
+    private final ExecutorService poolExecutor;
+    private final List<Future<Void>> poolFutures = new ArrayList<>();
+    // Rows of the engine outputs of a pooled run, in face order.
+    private float[][] pooledBatch = new float[0][];
 
-    Pair<String, Float> ret = null;
-    for (Map.Entry<String, Recognition> entry : registered.entrySet()) {
-        final String name = entry.getKey();
-        final float[] knownEmb = ((float[][]) entry.getValue().getExtra())[0];
+    // first is used as engine when not null, the other interpreters are built.
+    Engines(
+        final Backend backend,
+        final int poolSize,
+        final int numThreads,
+        final Interpreter first) {
+      this.backend = backend;
+      this.poolSize = poolSize;
+      this.numThreads = numThreads;
+      final List<Engine> built = new ArrayList<>(poolSize);
+      try {
+        built.add(new Engine(first != null ? first : newInterpreter(backend, numThreads)));
+        for (int i = 1; i < poolSize; i++) {
+          built.add(new Engine(newInterpreter(backend, numThreads)));
+        }
+      } catch (final RuntimeException e) {
+        for (final Engine engine : built) {
+          engine.close();
+        }
+        throw e;
+      }
+      engine = built.get(0);
+      if (poolSize < 2) {
+        pool = null;
+        poolExecutor = null;
+        return;
+      }
+      pool = built;
+      poolExecutor =
+          Executors.newFixedThreadPool(
+              poolSize - 1,
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                  final Thread thread = new Thread(r, "face-embedding");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+    }
 
-        float distance = 0;
-        for (int i = 0; i < emb.length; i++) {
-              float diff = emb[i] - knownEmb[i];
-              distance += diff*diff;
+    float[][] embed(final List<Bitmap> bitmaps) {
+      if (pool == null || bitmaps.size() < 2) {
+        return engine.embed(bitmaps, 0, bitmaps.size());
+      }
+      for (final Engine e : pool) {
+        e.bitmaps = bitmaps;
+        e.frame = null;
+        e.faces = null;
+      }
+      return embedPooled(bitmaps.size());
+    }
+
+    float[][] embed(final YuvFrame frame, final List<Matrix> faces) {
+      if (pool == null || faces.size() < 2) {
+        return engine.embed(frame, faces, 0, faces.size());
+      }
+      for (final Engine e : pool) {
+        e.bitmaps = null;
+        e.frame = frame;
+        e.faces = faces;
+      }
+      return embedPooled(faces.size());
+    }
+
+    // Runs every interpreter so the first real frame does not pay for kernel setup.
+    void warmUp(final int runs) {
+      for (int i = 0; i < runs; i++) {
+        if (pool == null) {
+          engine.warmUp();
+          continue;
         }
-        distance = (float) Math.sqrt(distance);
-        if (ret == null || distance < ret.second) {
-            ret = new Pair<>(name, distance);
+        for (final Engine e : pool) {
+          e.warmUp();
         }
+      }
     }
 
-    return ret;
+    void close() {
+      if (pool == null) {
+        engine.close();
+        return;
+      }
+      poolExecutor.shutdown();
+      for (final Engine e : pool) {
+        e.close();
+      }
+    }
+
+    // Splits count faces into contiguous runs, one per pool interpreter, embeds them
+    // concurrently and returns the embeddings in face order. The first run is embedded on the
+    // calling thread.
+    private float[][] embedPooled(final int count) {
+      if (pooledBatch.length != count) {
+        pooledBatch = new float[count][];
+      }
+      final int perEngine = (count + pool.size() - 1) / pool.size();
+      final int engines = (count + perEngine - 1) / perEngine;
+      for (int i = 0; i < engines; i++) {
+        final Engine e = pool.get(i);
+        e.from = i * perEngine;
+        e.to = Math.min(e.from + perEngine, count);
+      }
+
+      poolFutures.clear();
+      for (int i = 1; i < engines; i++) {
+        poolFutures.add(poolExecutor.submit(pool.get(i)));
+      }
+      RuntimeException failure = null;
+      try {
+        pool.get(0).call();
+      } catch (final RuntimeException e) {
+        failure = e;
+      }
+      // The other runs are always waited for, their engines are reused by the next call.
+      boolean interrupted = false;
+      for (int i = 0; i < poolFutures.size(); i++) {
+        try {
+          poolFutures.get(i).get();
+        } catch (final InterruptedException e) {
+          interrupted = true;
+          i--;
+        } catch (final ExecutionException e) {
+          if (failure == null) {
+            failure = new RuntimeException("Embedding failed", e.getCause());
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure != null) {
+        throw failure;
+      }
 
+      for (int i = 0; i < engines; i++) {
+        final Engine e = pool.get(i);
+        for (int face = e.from; face < e.to; face++) {
+          pooledBatch[face] = e.embeedings[face - e.from];
+        }
+      }
+      return pooledBatch;
+    }
   }
 
+  /** One interpreter with its own input and output buffers. */
+  private final class Engine implements Callable<Void> {
+    final Interpreter tfLite;
+
+    // embeedings: array of shape [inputBatchSize, OUTPUT_SIZE], output of every run
+    float[][] embeedings;
+    // quantizedEmbeedings: array of shape [inputBatchSize, OUTPUT_SIZE], raw output of models
+    // with a quantized output, dequantized into embeedings. Null for float outputs.
+    private byte[][] quantizedEmbeedings;
+
+    private ByteBuffer imgData;
+    // Float view of imgData used to fill it for float models.
+    private FloatBuffer imgFloats;
+    // Run arguments, they always hold imgData and the output array.
+    private final Object[] inputArray = new Object[1];
+    private final Map<Integer, Object> outputMap = new HashMap<>();
+    private final int[] intValues;
+    // One face worth of model input, bulk copied into imgData.
+    private float[] floatValues;
+    private byte[] byteValues;
+    // Values of the face to frame transform being sampled.
+    private final float[] faceToFrame = new float[9];
+    // Number of faces the interpreter input and imgData are currently sized for.
+    private int inputBatchSize;
+
+    // Faces [from, to) of the pooled run, from bitmaps or else from frame and faces.
+    List<Bitmap> bitmaps;
+    YuvFrame frame;
+    List<Matrix> faces;
+    int from;
+    int to;
+
+    Engine(final Interpreter tfLite) {
+      this.tfLite = tfLite;
+      intValues = new int[inputSize * inputSize];
+      if (isModelQuantized) {
+        byteValues = new byte[inputSize * inputSize * 3];
+      } else {
+        floatValues = new float[inputSize * inputSize * 3];
+      }
+      allocate(1);
+    }
+
+    @Override
+    public Void call() {
+      if (bitmaps != null) {
+        embed(bitmaps, from, to);
+      } else {
+        embed(frame, faces, from, to);
+      }
+      return null;
+    }
+
+    // Runs bitmaps [from, to) through the model in one invocation, array of shape
+    // [to - from, OUTPUT_SIZE]. The array is overwritten by the next run.
+    float[][] embed(final List<Bitmap> bitmaps, final int from, final int to) {
+      resizeInput(to - from);
+
+      Trace.beginSection("preprocessBitmap");
+      rewind();
+      for (int i = from; i < to; i++) {
+        final Bitmap bitmap = bitmaps.get(i);
+        bitmap.getPixels(
+            intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        addPixelsToInput();
+      }
+      Trace.endSection(); // preprocessBitmap
+
+      return run();
+    }
+
+    // Same as embed(List<Bitmap>, int, int) for faces sampled straight out of a camera frame.
+    float[][] embed(
+        final YuvFrame frame, final List<Matrix> faces, final int from, final int to) {
+      resizeInput(to - from);
+
+      Trace.beginSection("preprocessYuv");
+      rewind();
+      for (int i = from; i < to; i++) {
+        faces.get(i).getValues(faceToFrame);
+        frame.sample(faceToFrame, inputSize, inputSize, intValues);
+        addPixelsToInput();
+      }
+      Trace.endSection(); // preprocessYuv
+
+      return run();
+    }
+
+    // Runs a single black face through the model.
+    void warmUp() {
+      resizeInput(1);
+      rewind();
+      Arrays.fill(intValues, 0xff000000);
+      addPixelsToInput();
+      run();
+    }
+
+    void close() {
+      tfLite.close();
+    }
+
+    // Runs the interpreter on the faces in imgData.
+    private float[][] run() {
+      // Run the inference call.
+      Trace.beginSection("run");
+      //tfLite.runForMultipleInputsOutputs(inputArray, outputMapBack);
+      tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+      Trace.endSection();
+
+      if (quantizedEmbeedings != null) {
+        dequantizeOutput();
+      }
+
+//      String res = "[";
+//      for (int i = 0; i < embeedings[0].length; i++) {
+//        res += embeedings[0][i];
+//        if (i < embeedings[0].length - 1) res += ", ";
+//      }
+//      res += "]";
+
+      return embeedings;
+    }
+
+    // Converts the quantized output of the last run into embeedings.
+    private void dequantizeOutput() {
+      final float[] table = dequantizedOutput;
+      for (int face = 0; face < inputBatchSize; face++) {
+        final byte[] quantized = quantizedEmbeedings[face];
+        final float[] embedding = embeedings[face];
+        for (int i = 0; i < OUTPUT_SIZE; i++) {
+          embedding[i] = table[quantized[i] & 0xFF];
+        }
+      }
+    }
+
+    // Sizes the interpreter input and imgData for batches of batchSize faces.
+    private void resizeInput(final int batchSize) {
+      if (batchSize == inputBatchSize) {
+        return;
+      }
+      tfLite.resizeInput(0, new int[] {batchSize, inputSize, inputSize, 3});
+      allocate(batchSize);
+    }
+
+    private void allocate(final int batchSize) {
+      final int numBytesPerChannel = isModelQuantized ? 1 : 4;
+      // The interpreter wants a buffer of exactly the input tensor size.
+      imgData =
+          ByteBuffer.allocateDirect(batchSize * inputSize * inputSize * 3 * numBytesPerChannel);
+      imgData.order(ByteOrder.nativeOrder());
+      imgFloats = imgData.asFloatBuffer();
+      embeedings = new float[batchSize][OUTPUT_SIZE];
+      inputArray[0] = imgData;
+      if (dequantizedOutput != null) {
+        quantizedEmbeedings = new byte[batchSize][OUTPUT_SIZE];
+        outputMap.put(0, quantizedEmbeedings);
+      } else {
+        outputMap.put(0, embeedings);
+      }
+      inputBatchSize = batchSize;
+    }
+
+    private void rewind() {
+      if (isModelQuantized) {
+        imgData.rewind();
+      } else {
+        imgFloats.rewind();
+      }
+    }
+
+    // Appends the face in intValues to imgData.
+    private void addPixelsToInput() {
+      if (isModelQuantized) {
+        addToQuantizedInput();
+      } else {
+        addToFloatInput();
+      }
+    }
+
+    // Appends the face in intValues to imgData through imgFloats, normalized from 0-255 int to
+    // float with the IMAGE_MEAN and IMAGE_STD table.
+    private void addToFloatInput() {
+      final int[] pixels = intValues;
+      final float[] values = floatValues;
+      final float[] table = NORMALIZED_CHANNEL;
+      for (int i = 0, v = 0; i < pixels.length; i++, v += 3) {
+        final int pixelValue = pixels[i];
+        values[v] = table[(pixelValue >> 16) & 0xFF];
+        values[v + 1] = table[(pixelValue >> 8) & 0xFF];
+        values[v + 2] = table[pixelValue & 0xFF];
+      }
+      imgFloats.put(values);
+    }
+
+    // Appends the face in intValues to imgData, quantized with the quantizedChannel table.
+    private void addToQuantizedInput() {
+      final int[] pixels = intValues;
+      final byte[] values = byteValues;
+      final byte[] table = quantizedChannel;
+      for (int i = 0, v = 0; i < pixels.length; i++, v += 3) {
+        final int pixelValue = pixels[i];
+        values[v] = table[(pixelValue >> 16) & 0xFF];
+        values[v + 1] = table[(pixelValue >> 8) & 0xFF];
+        values[v + 2] = table[pixelValue & 0xFF];
+      }
+      imgData.put(values);
+    }
+  }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap, boolean storeExtra) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
-    Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
-    imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
-      for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
-        if (isModelQuantized) {
-          // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
-        } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        }
-      }
-    }
-    Trace.endSection(); // preprocessBitmap
+    final float[] embedding = embed(bitmap)[0];
 
-    // Copy the input data into TensorFlow.
-    Trace.beginSection("feed");
+    final int numDetectionsOutput = 1;
+    final ArrayList<Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
+    Recognition rec = nearestRecognition(embedding);
 
+    recognitions.add( rec );
 
-    Object[] inputArray = {imgData};
+    if (storeExtra) {
+        // The output array is reused by the next run.
+        rec.setExtra(new float[][] {embedding.clone()});
+    }
 
     Trace.endSection();
+    return recognitions;
+  }
 
-// Here outputMap is changed to fit the Face Mask detector
-    Map<Integer, Object> outputMap = new HashMap<>();
+  @Override
+  public List<Recognition> recognizeImages(final List<Bitmap> bitmaps, boolean storeExtra) {
+    Trace.beginSection("recognizeImages");
+    final ArrayList<Recognition> recognitions = new ArrayList<>(bitmaps.size());
+    if (bitmaps.isEmpty()) {
+      Trace.endSection();
+      return recognitions;
+    }
 
-    embeedings = new float[1][OUTPUT_SIZE];
-    outputMap.put(0, embeedings);
+    final float[][] batch = embed(bitmaps);
+    for (final float[] embedding : batch) {
+      final Recognition rec = nearestRecognition(embedding);
+      if (storeExtra) {
+        // Same [1, OUTPUT_SIZE] shape as recognizeImage, so it can be registered as is.
+        rec.setExtra(new float[][] {embedding.clone()});
+      }
+      recognitions.add(rec);
+    }
 
+    Trace.endSection();
+    return recognitions;
+  }
 
-    // Run the inference call.
-    Trace.beginSection("run");
-    //tfLite.runForMultipleInputsOutputs(inputArray, outputMapBack);
-    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+  @Override
+  public void recognize(
+      final List<Bitmap> bitmaps, final Match[] matches, final float[][] embeddings) {
+    Trace.beginSection("recognize");
+    if (!bitmaps.isEmpty()) {
+      match(embed(bitmaps), bitmaps.size(), matches, embeddings);
+    }
     Trace.endSection();
+  }
 
-//    String res = "[";
-//    for (int i = 0; i < embeedings[0].length; i++) {
-//      res += embeedings[0][i];
-//      if (i < embeedings[0].length - 1) res += ", ";
-//    }
-//    res += "]";
+  @Override
+  public void recognize(
+      final YuvFrame frame,
+      final List<Matrix> faces,
+      final Match[] matches,
+      final float[][] embeddings) {
+    Trace.beginSection("recognizeYuv");
+    if (!faces.isEmpty()) {
+      match(embed(frame, faces), faces.size(), matches, embeddings);
+    }
+    Trace.endSection();
+  }
 
+  // Fills the matches, and the embeddings if requested, of the first count faces of a batch.
+  private void match(
+      final float[][] batch, final int count, final Match[] matches, final float[][] embeddings) {
+    for (int i = 0; i < count; i++) {
+      final Match match = matches[i];
+      match.set(-1, "?", Float.MAX_VALUE);
+      // Searched even while empty, the search applies registrations queued by other threads.
+      gallery.search(batch[i], nearest);
+      if (nearest.size() > 0) {
+        final int id = nearest.id(0);
+        match.set(id, gallery.getName(id), (float) Math.sqrt(nearest.distance(0)));
+      }
+      if (embeddings != null && embeddings[i] != null) {
+        System.arraycopy(batch[i], 0, embeddings[i], 0, OUTPUT_SIZE);
+      }
+    }
+  }
 
+  // Looks up the registered identity closest to the embedding.
+  private Recognition nearestRecognition(final float[] embedding) {
     float distance = Float.MAX_VALUE;
     String id = "0";
     String label = "?";
 
-    if (registered.size() > 0) {
-        //LOGGER.i("dataset SIZE: " + registered.size());
-        final Pair<String, Float> nearest = findNearest(embeedings[0]);
-        if (nearest != null) {
+    // Searched even while empty, the search applies registrations queued by other threads.
+    gallery.search(embedding, nearest);
+    if (nearest.size() > 0) {
 
-            final String name = nearest.first;
-            label = name;
-            distance = nearest.second;
+        final String name = gallery.getName(nearest.id(0));
+        label = name;
+        distance = (float) Math.sqrt(nearest.distance(0));
 
-            LOGGER.i("nearest: " + name + " - distance: " + distance);
+        LOGGER.i("nearest: " + name + " - distance: " + distance);
 
 
-        }
     }
 
-
-    final int numDetectionsOutput = 1;
-    final ArrayList<Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
-    Recognition rec = new Recognition(
+    return new Recognition(
             id,
             label,
             distance,
             new RectF());
+  }
 
-    recognitions.add( rec );
+  @Override
+  public List<Recognition> recognizeTopK(final Bitmap bitmap, final int k) {
+    Trace.beginSection("recognizeTopK");
+    final List<Recognition> recognitions = findNearest(embed(bitmap)[0], k);
+    Trace.endSection();
+    return recognitions;
+  }
 
-    if (storeExtra) {
-        rec.setExtra(embeedings);
-    }
+  @Override
+  public List<Recognition> findNearest(final float[] embedding, final int k) {
+    final NearestNeighbors nearest = new NearestNeighbors(k);
+    gallery.search(embedding, nearest);
 
-    Trace.endSection();
+    final ArrayList<Recognition> recognitions = new ArrayList<>(nearest.size());
+    for (int i = 0; i < nearest.size(); i++) {
+      final int row = nearest.id(i);
+      recognitions.add(new Recognition(
+              String.valueOf(row),
+              gallery.getName(row),
+              (float) Math.sqrt(nearest.distance(i)),
+              new RectF()));
+    }
     return recognitions;
   }
 
@@ -299,14 +951,138 @@ public class TFLiteObjectDetectionAPIModel
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    synchronized (this) {
+      // A rebuild still in progress closes what it built instead of swapping it in.
+      closed = true;
+    }
+    rebuildExecutor.shutdownNow();
+    acquireEngines().close();
+    gallery.close();
+  }
+
+  @Override
+  public synchronized void setNumThreads(int num_threads) {
+    requestedThreads = num_threads;
+    requestRebuild(null);
+  }
+
+  @Override
+  public synchronized int getNumThreads() {
+    return requestedThreads;
+  }
 
-  public void setNumThreads(int num_threads) {
-    if (tfLite != null) tfLite.setNumThreads(num_threads);
+  @Override
+  public synchronized void setInterpreterPool(final int size, final int numThreads) {
+    requestedPoolSize = Math.max(1, size);
+    requestedThreads = numThreads;
+    requestRebuild(null);
   }
 
   @Override
   public void setUseNNAPI(boolean isChecked) {
-    if (tfliteOptions != null) tfliteOptions.setUseNNAPI(isChecked);
+    setBackend(isChecked ? Backend.NNAPI : DEFAULT_BACKEND, null);
+  }
+
+  @Override
+  public Backend getBackend() {
+    return engines.backend;
+  }
+
+  @Override
+  public synchronized void setBackend(final Backend backend, final RebuildListener listener) {
+    requestedBackend = backend;
+    requestRebuild(listener);
+  }
+
+  @Override
+  public void warmUp(final int runs) {
+    final Future<?> done;
+    synchronized (this) {
+      warmUpRuns = runs;
+      // Queued behind the pending rebuilds, so the interpreters they swap in are the ones warmed.
+      done = rebuildExecutor.submit(() -> engines.warmUp(runs));
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.get();
+        break;
+      } catch (final InterruptedException e) {
+        interrupted = true;
+      } catch (final ExecutionException e) {
+        throw new RuntimeException("Warm-up failed", e.getCause());
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Queues a rebuild with the requested settings. Called with this locked.
+  private void requestRebuild(final RebuildListener listener) {
+    final Backend backend = requestedBackend;
+    final int poolSize = requestedPoolSize;
+    final int numThreads = requestedThreads;
+    final int runs = warmUpRuns;
+    rebuildExecutor.execute(() -> rebuild(backend, poolSize, numThreads, runs, listener));
+  }
+
+  // Builds and warms up interpreters with the settings on the rebuild thread, then swaps them in.
+  private void rebuild(
+      final Backend backend,
+      final int poolSize,
+      final int numThreads,
+      final int warmUpRuns,
+      final RebuildListener listener) {
+    final Engines current = engines;
+    if (current.backend == backend
+        && current.poolSize == poolSize
+        && current.numThreads == numThreads) {
+      if (listener != null) {
+        listener.onRebuilt(backend, true);
+      }
+      return;
+    }
+
+    final long startTime = SystemClock.uptimeMillis();
+    final Engines fresh;
+    try {
+      fresh = new Engines(backend, poolSize, numThreads, null);
+      fresh.warmUp(warmUpRuns);
+    } catch (final RuntimeException e) {
+      LOGGER.e(e, "Cannot run the model on %s, staying on %s", backend, current.backend);
+      synchronized (this) {
+        if (requestedBackend == backend) {
+          requestedBackend = current.backend;
+        }
+      }
+      if (listener != null) {
+        listener.onRebuilt(current.backend, false);
+      }
+      return;
+    }
+    synchronized (this) {
+      // Checked and swapped under the lock close() sets closed with, so that either close()
+      // finds fresh in engines or fresh is closed here.
+      if (closed) {
+        fresh.close();
+        return;
+      }
+      engines = fresh;
+      retired.add(current);
+    }
+    LOGGER.i("Running on %s, %d interpreters with %d threads each, ready in %dms", backend,
+        poolSize, numThreads, SystemClock.uptimeMillis() - startTime);
+    if (listener != null) {
+      listener.onRebuilt(backend, true);
+    }
+  }
+
+  // Builds an interpreter of the model.
+  private Interpreter newInterpreter(final Backend backend, final int numThreads) {
+    final Interpreter.Options options = backend.createOptions();
+    options.setNumThreads(numThreads);
+    return new Interpreter(tfliteModel, options);
   }
 }
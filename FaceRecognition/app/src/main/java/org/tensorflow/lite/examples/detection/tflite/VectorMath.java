@@ -0,0 +1,83 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/** Distance kernels shared by the embedding galleries. */
+final class VectorMath {
+
+  // Number of dimensions summed between two early-abandon checks.
+  private static final int ABANDON_BLOCK = 16;
+
+  private VectorMath() {}
+
+  /** Scales {@code v[offset, offset + dim)} to unit length. A zero vector is left untouched. */
+  static void normalize(final float[] v, final int offset, final int dim) {
+    float norm = 0;
+    for (int i = offset; i < offset + dim; i++) {
+      norm += v[i] * v[i];
+    }
+    if (norm == 0) {
+      return;
+    }
+    final float scale = (float) (1.0 / Math.sqrt(norm));
+    for (int i = offset; i < offset + dim; i++) {
+      v[i] *= scale;
+    }
+  }
+
+  /** Squared L2 distance between {@code a[0, dim)} and {@code b[offset, offset + dim)}. */
+  static float squaredDistance(final float[] a, final float[] b, final int offset, final int dim) {
+    float sum = 0;
+    for (int i = 0; i < dim; i++) {
+      final float diff = a[i] - b[offset + i];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /** Squared L2 distance between two vectors of the same array. */
+  static float squaredDistance(
+      final float[] data, final int offsetA, final int offsetB, final int dim) {
+    float sum = 0;
+    for (int i = 0; i < dim; i++) {
+      final float diff = data[offsetA + i] - data[offsetB + i];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * Squared L2 distance between {@code a[0, dim)} and {@code b[offset, offset + dim)} that gives
+   * up as soon as the partial sum reaches {@code bound}. The result is exact when it is below
+   * {@code bound}; otherwise it is some value {@code >= bound}.
+   */
+  static float squaredDistance(
+      final float[] a, final float[] b, final int offset, final int dim, final float bound) {
+    float sum = 0;
+    int i = 0;
+    while (i < dim) {
+      final int end = Math.min(i + ABANDON_BLOCK, dim);
+      for (; i < end; i++) {
+        final float diff = a[i] - b[offset + i];
+        sum += diff * diff;
+      }
+      if (sum >= bound) {
+        return sum;
+      }
+    }
+    return sum;
+  }
+}